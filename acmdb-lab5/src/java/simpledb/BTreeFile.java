@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -139,6 +140,31 @@ public class BTreeFile implements DbFile {
         }
     }
 
+    /**
+     * Read a page into an off-heap arena frame. Leaf pages become views over
+     * the frame; the root pointer, header and internal pages are few and are
+     * read onto the heap as usual.
+     *
+     * @param pid   - the id of the page to read
+     * @param frame - a page sized frame the returned page may keep using
+     * @return the page
+     * @see PageArena
+     */
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        BTreePageId id = (BTreePageId) pid;
+        if (id.pgcateg() != BTreePageId.LEAF)
+            return readPage(pid);
+        long offset = BTreeRootPtrPage.getPageSize() + (long) (id.pageNumber() - 1) * BufferPool.getPageSize();
+        if (offset + BufferPool.getPageSize() > f.length())
+            throw new IllegalArgumentException("Read past end of table");
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            PageArena.load(raf, offset, frame);
+            return new BTreeLeafPage(id, frame, keyField);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Write a page to disk.  This should not be called directly but should
      * be called from the BufferPool when pages are flushed to disk
@@ -160,6 +186,30 @@ public class BTreeFile implements DbFile {
         }
     }
 
+    /**
+     * Write several pages to disk, merging runs of adjacent pages into a
+     * single write. The root pointer page is written on its own.
+     *
+     * @param pages - the pages to write, sorted by page number
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        RandomAccessFile rf = new RandomAccessFile(f, "rw");
+        try {
+            ArrayList<Page> rest = new ArrayList<Page>(pages.size());
+            for (Page page : pages) {
+                if (((BTreePageId) page.getId()).pgcateg() == BTreePageId.ROOT_PTR) {
+                    rf.seek(0);
+                    rf.write(page.getPageData());
+                } else {
+                    rest.add(page);
+                }
+            }
+            PageCleaner.writeCoalesced(rf, rest, BTreeRootPtrPage.getPageSize(), 1);
+        } finally {
+            rf.close();
+        }
+    }
+
     /**
      * Returns the number of pages in this BTreeFile.
      */
@@ -176,10 +226,13 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_WRITE permission, and locks the
-     * leaf node with permission perm.
+     * Function which finds and locks the leaf page in the B+ tree corresponding to
+     * the left-most page possibly containing the key field f. It locks the internal
+     * nodes along the path with READ_ONLY permission using lock coupling: each node
+     * stays locked only until its child is locked, so concurrent descents share the
+     * upper levels of the tree. Only the leaf node keeps its lock, with permission
+     * perm, until the transaction ends. Nodes the transaction had locked before keep
+     * their locks.
      * <p>
      * If f is null, it finds the left-most leaf page -- used for the iterator
      *
@@ -193,28 +246,105 @@ public class BTreeFile implements DbFile {
     private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
                                        Field f)
             throws DbException, TransactionAbortedException {
+        return findLeafPage(tid, dirtypages, pid, perm, f, null, null);
+    }
 
-        if (pid.pgcateg() == BTreePageId.INTERNAL) {
-            BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
-            Iterator<BTreeEntry> iter = internalPage.iterator();
-            BTreePageId next = null;
-            BTreeEntry entry = null;
-            while (f != null && iter.hasNext()) {
-                entry = iter.next();
-                if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                    next = entry.getLeftChild();
-                    break;
-                }
+    /**
+     * As above, also unlocking parent, the page the descent came from, once
+     * pid is locked.
+     *
+     * @param parent - the page to unlock after locking pid, or null to unlock nothing
+     * @param newLeaf - if not null, set to whether the transaction did not hold
+     *                the leaf before this descent locked it
+     */
+    private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+                                       Field f, BTreePageId parent, boolean[] newLeaf)
+            throws DbException, TransactionAbortedException {
+        while (true) {
+            boolean internal = pid.pgcateg() == BTreePageId.INTERNAL;
+            boolean locked = isLocked(tid, dirtypages, pid);
+            Page page = getPage(tid, dirtypages, pid, internal ? Permissions.READ_ONLY : perm);
+            if (parent != null)
+                unlockPage(tid, dirtypages, parent);
+            if (!internal) {
+                if (newLeaf != null)
+                    newLeaf[0] = !locked;
+                return (BTreeLeafPage) page;
             }
-            if (f == null)
-                next = internalPage.iterator().next().getLeftChild();
-            else if (next == null)
-                next = entry.getRightChild();
-            return findLeafPage(tid, dirtypages, next, perm, f);
-        } else {
-            BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-            return leafPage;
+            parent = locked ? null : pid;
+            pid = childFor((BTreeInternalPage) page, f);
+        }
+    }
+
+    /**
+     * Find and lock the leaf page for an insert that has to split it. The
+     * split may change every ancestor of the leaf, up to the root pointer,
+     * so the descent locks them with READ_WRITE permission; but as soon as a
+     * node has an empty slot, a split below it stops there and the locks on
+     * the nodes above are released again (latch crabbing). The root pointer
+     * stays locked, since the split takes a new page through it. The caller
+     * must not hold a lock on any page below the root pointer that it took
+     * for this insert, or two splitters could each wait for the other's page.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param f          - the key field of the tuple to be inserted
+     * @return the leaf page the tuple belongs to, locked with READ_WRITE permission
+     */
+    private BTreeLeafPage findLeafPageForSplit(TransactionId tid, HashMap<PageId, Page> dirtypages, Field f)
+            throws DbException, TransactionAbortedException {
+        ArrayList<BTreePageId> ancestors = new ArrayList<BTreePageId>();
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+        BTreePageId pid = rootPtr.getRootId();
+        while (true) {
+            boolean locked = isLocked(tid, dirtypages, pid);
+            BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+            if (page.getNumEmptySlots() > 0) {
+                for (BTreePageId ancestor : ancestors)
+                    unlockPage(tid, dirtypages, ancestor);
+                ancestors.clear();
+            }
+            if (pid.pgcateg() != BTreePageId.INTERNAL)
+                return (BTreeLeafPage) page;
+            if (!locked)
+                ancestors.add(pid);
+            pid = childFor((BTreeInternalPage) page, f);
+        }
+    }
+
+    /**
+     * @return the child of page to descend to for key f, or the left-most
+     * child if f is null
+     */
+    private BTreePageId childFor(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> iter = page.iterator();
+        BTreeEntry entry = null;
+        while (f != null && iter.hasNext()) {
+            entry = iter.next();
+            if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey()))
+                return entry.getLeftChild();
         }
+        if (f == null)
+            return page.iterator().next().getLeftChild();
+        return entry.getRightChild();
+    }
+
+    /**
+     * @return whether the transaction already holds a lock on pid that a
+     * descent must not release
+     */
+    private boolean isLocked(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+        return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+    }
+
+    /**
+     * Release a lock taken during a descent. The page was only read, so it
+     * is dropped from dirtypages too.
+     */
+    private void unlockPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+        dirtypages.remove(pid);
+        Database.getBufferPool().releasePage(tid, pid);
     }
 
     /**
@@ -234,6 +364,22 @@ public class BTreeFile implements DbFile {
         return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
     }
 
+    /**
+     * Find and lock the leaf page for the key field f, starting at the root
+     * pointer, which is only locked while the descent reaches the root.
+     * Used by the iterators.
+     *
+     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     */
+    BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        boolean locked = isLocked(tid, dirtypages, rootPtrId);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+        return findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f, locked ? null : rootPtrId, null);
+    }
+
     /**
      * Split a leaf page to make room for new tuples and recursively split the parent node
      * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -487,6 +633,8 @@ public class BTreeFile implements DbFile {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
         // get a read lock on the root pointer page and use it to locate the root page
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        boolean rootPtrLocked = isLocked(tid, dirtypages, rootPtrId);
         BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
         BTreePageId rootId = rootPtr.getRootId();
 
@@ -494,13 +642,24 @@ public class BTreeFile implements DbFile {
             rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
             rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
             rootPtr.setRootId(rootId);
+            rootPtrLocked = true;
         }
 
         // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+        // and split the leaf page if there are no more slots available. The
+        // first descent only locks the leaf; a split descends again, locking
+        // the ancestors it may have to change
+        boolean[] newLeaf = {false};
+        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField),
+                rootPtrLocked ? null : rootPtrId, newLeaf);
         if(leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            // the split descent locks top-down from the root pointer, so let
+            // go of the full leaf first, unless the transaction held it before
+            if (newLeaf[0])
+                unlockPage(tid, dirtypages, leafPage.getId());
+            leafPage = findLeafPageForSplit(tid, dirtypages, t.getField(keyField));
+            if(leafPage.getNumEmptySlots() == 0)
+                leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
         }
 
         // insert the tuple into the leaf page
@@ -1192,7 +1351,32 @@ public class BTreeFile implements DbFile {
      * @return an iterator for all the tuples in this file
      */
     public DbFileIterator iterator(TransactionId tid) {
-        return new BTreeFileIterator(this, tid);
+        return new BTreeFileIterator(this, tid, null);
+    }
+
+    /**
+     * Get an iterator over all tuples in this file whose leaf pages are read
+     * through the given ring; root and internal pages use the pool normally.
+     *
+     * @param tid - the transaction id
+     * @param ring - the scan's ring, or null to use the pool normally
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return new BTreeFileIterator(this, tid, ring);
+    }
+
+    /**
+     * Create the read-ahead of a scan that starts at the given leaf and
+     * follows right sibling pointers, or null if read-ahead is turned off.
+     */
+    static ReadAhead leafReadAhead(BTreeLeafPage first, BufferRing ring) {
+        BufferPool pool = Database.getBufferPool();
+        if (!pool.isReadAheadEnabled())
+            return null;
+        ReadAhead readAhead = new ReadAhead(pool, ring, page -> page instanceof BTreeLeafPage
+                ? ((BTreeLeafPage) page).getRightSiblingId() : null);
+        readAhead.accessed(first);
+        return readAhead;
     }
 
 }
@@ -1203,29 +1387,32 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    ReadAhead readAhead = null;
 
     TransactionId tid;
     BTreeFile f;
+    BufferRing ring;
 
     /**
      * Constructor for this iterator
      * @param f - the BTreeFile containing the tuples
      * @param tid - the transaction id
+     * @param ring - ring for the leaf pages, or null to use the pool normally
      */
-    public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+    public BTreeFileIterator(BTreeFile f, TransactionId tid, BufferRing ring) {
         this.f = f;
         this.tid = tid;
+        this.ring = ring;
     }
 
     /**
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_WRITE);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_WRITE, null);
+        curp = f.findLeafPage(tid, Permissions.READ_WRITE, null);
+        curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, curp.getId(), Permissions.READ_WRITE);
         it = curp.iterator();
+        readAhead = BTreeFile.leafReadAhead(curp, ring);
     }
 
     /**
@@ -1241,12 +1428,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
-            if(nextp == null) {
-                curp = null;
-            }
-            else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_WRITE);
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+            curp = null;
+            if(nextp != null) {
+                curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
+                        nextp, Permissions.READ_WRITE, ring);
+                if (readAhead != null)
+                    readAhead.accessed(curp);
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1272,7 +1460,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        if (curp != null)
+            Database.getBufferPool().unpinPage(tid, curp.getId());
         curp = null;
+        if (readAhead != null)
+            readAhead.stop();
     }
 }
 
@@ -1284,6 +1476,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    ReadAhead readAhead = null;
     TransactionId tid;
     BTreeFile f;
     IndexPredicate ipred;
@@ -1305,17 +1498,20 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_WRITE);
-        BTreePageId root = rootPtr.getRootId();
         if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_WRITE, ipred.getField());
+            curp = f.findLeafPage(tid, Permissions.READ_WRITE, ipred.getField());
         }
         else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_WRITE, null);
+            curp = f.findLeafPage(tid, Permissions.READ_WRITE, null);
         }
+        curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, curp.getId(), Permissions.READ_WRITE);
         it = curp.iterator();
+        // scans bounded on the right usually stop after a leaf or two
+        if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ
+                || ipred.getOp() == Op.NOT_EQUALS) {
+            readAhead = BTreeFile.leafReadAhead(curp, null);
+        }
     }
 
     /**
@@ -1347,8 +1543,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
                 return null;
             }
             else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+                Database.getBufferPool().unpinPage(tid, curp.getId());
+                curp = null;
+                curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
                         next, Permissions.READ_WRITE);
+                if (readAhead != null)
+                    readAhead.accessed(curp);
                 it = curp.iterator();
             }
         }
@@ -1370,5 +1570,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        if (curp != null)
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+        curp = null;
+        if (readAhead != null)
+            readAhead.stop();
     }
 }
\ No newline at end of file
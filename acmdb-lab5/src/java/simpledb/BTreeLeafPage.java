@@ -2,19 +2,24 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Like HeapPage, a leaf page is either materialized or, in an off-heap
+ * BufferPool, a view that decodes tuples from its {@link PageArena} frame.
  *
  * @see BTreeFile
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
-	private final byte header[];
-	private final Tuple tuples[];
+public class BTreeLeafPage extends BTreePage implements FramedPage {
+	private final byte header[];   // null for frame views
+	private final Tuple tuples[];  // null for frame views
 	private final int numSlots;
+	private volatile ByteBuffer frame; // non-null for frame views
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -106,6 +111,61 @@ public class BTreeLeafPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * Create a BTreeLeafPage that reads and writes its data in place in a
+	 * frame of the BufferPool's off-heap arena. The frame must already hold
+	 * the page bytes, in the format described above. Only the parent and
+	 * sibling pointers are kept as fields (and written through to the
+	 * frame); tuples are decoded when asked for.
+	 *
+	 * @see PageArena
+	 */
+	BTreeLeafPage(BTreePageId id, ByteBuffer frame, int key) throws IOException {
+		super(id, key);
+		this.numSlots = getMaxTuples();
+		this.parent = frame.getInt(0);
+		this.leftSibling = frame.getInt(INDEX_SIZE);
+		this.rightSibling = frame.getInt(2 * INDEX_SIZE);
+		this.header = null;
+		this.tuples = null;
+		this.frame = frame;
+	}
+
+	public boolean isFrameBacked() {
+		ByteBuffer f = frame;
+		return f != null && f.isDirect();
+	}
+
+	public void detachFrame() {
+		ByteBuffer f = frame;
+		if (f != null && f.isDirect())
+			frame = ByteBuffer.wrap(PageArena.read(f, 0, BufferPool.getPageSize()));
+	}
+
+	// offset of the given slot's tuple in a frame view
+	private int slotOffset(int i) {
+		return 3 * INDEX_SIZE + getHeaderSize() + i * td.getSize();
+	}
+
+	// key of the tuple in a used slot, decoding only that field for frame views
+	private Field getKey(int i) {
+		ByteBuffer f = frame;
+		if (f == null)
+			return tuples[i].getField(keyField);
+		int offset = slotOffset(i);
+		for (int j = 0; j < keyField; j++)
+			offset += td.getFieldType(j).getLen();
+		return PageArena.readField(f, offset, td.getFieldType(keyField));
+	}
+
+	// frame views capture their before image lazily, right before the first
+	// write; the writer holds oldDataLock from here until it has written,
+	// so getBeforeImage never copies a half-written frame
+	private void beforeWrite() {
+		if (frame != null && oldData == null)
+			oldData = getPageData();
+	}
+
 	/** 
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
@@ -136,6 +196,8 @@ public class BTreeLeafPage extends BTreePage {
 			synchronized(oldDataLock)
 			{
 				oldDataRef = oldData;
+				if (oldDataRef == null) // frame view not modified since the last setBeforeImage
+					oldDataRef = getPageData();
 			}
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
@@ -149,7 +211,7 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = frame != null ? null : getPageData().clone();
 		}
 	}
 
@@ -199,6 +261,10 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		ByteBuffer view = frame;
+		if (view != null)
+			return PageArena.read(view, 0, BufferPool.getPageSize());
+
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -294,7 +360,12 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null tuple.");
-		markSlotUsed(rid.tupleno(), false);
+		synchronized (oldDataLock) {
+			beforeWrite();
+			markSlotUsed(rid.tupleno(), false);
+			if (frame != null)
+				PageArena.write(frame, slotOffset(rid.tupleno()), new byte[td.getSize()]);
+		}
 		t.setRecordId(null);
 	}
 
@@ -321,13 +392,21 @@ public class BTreeLeafPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
+		synchronized (oldDataLock) {
+			insertSorted(t, emptySlot);
+		}
+	}
+
+	// insertTuple once an empty slot is found; the caller holds oldDataLock
+	private void insertSorted(Tuple t, int emptySlot) {
+		beforeWrite();
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
 		Field key = t.getField(keyField);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(getKey(i).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -355,7 +434,10 @@ public class BTreeLeafPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
-		tuples[goodSlot] = t;
+		if (frame != null)
+			PageArena.writeTuple(frame, slotOffset(goodSlot), t);
+		else
+			tuples[goodSlot] = t;
 	}
 
 	/**
@@ -363,7 +445,13 @@ public class BTreeLeafPage extends BTreePage {
 	 * headers and RecordId
 	 */
 	private void moveRecord(int from, int to) {
-		if(!isSlotUsed(to) && isSlotUsed(from)) {
+		if(!isSlotUsed(to) && isSlotUsed(from) && frame != null) {
+			PageArena.write(frame, slotOffset(to), PageArena.read(frame, slotOffset(from), td.getSize()));
+			PageArena.write(frame, slotOffset(from), new byte[td.getSize()]);
+			markSlotUsed(to, true);
+			markSlotUsed(from, false);
+		}
+		else if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
 			tuples[to] = tuples[from];
@@ -412,6 +500,12 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			leftSibling = id.pageNumber();
 		}
+		if (frame != null) {
+			synchronized (oldDataLock) {
+				beforeWrite();
+				frame.putInt(INDEX_SIZE, leftSibling);
+			}
+		}
 	}
 
 	/**
@@ -432,6 +526,30 @@ public class BTreeLeafPage extends BTreePage {
 			}
 			rightSibling = id.pageNumber();
 		}
+		if (frame != null) {
+			synchronized (oldDataLock) {
+				beforeWrite();
+				frame.putInt(2 * INDEX_SIZE, rightSibling);
+			}
+		}
+	}
+
+	/**
+	 * Set the parent id, writing it through to the frame for frame views
+	 * @param id - the id of the parent of this page
+	 * @throws DbException if the id is not valid
+	 */
+	@Override
+	public void setParentId(BTreePageId id) throws DbException {
+		if (frame == null) {
+			super.setParentId(id);
+			return;
+		}
+		synchronized (oldDataLock) {
+			beforeWrite();
+			super.setParentId(id);
+			frame.putInt(0, parent);
+		}
 	}
 
 	/**
@@ -458,7 +576,9 @@ public class BTreeLeafPage extends BTreePage {
 	public boolean isSlotUsed(int i) {
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		ByteBuffer f = frame;
+		byte b = f != null ? f.get(3 * INDEX_SIZE + headerbyte) : header[headerbyte];
+		return (b & (1 << headerbit)) != 0;
 	}
 
 	/**
@@ -469,6 +589,12 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		ByteBuffer f = frame;
+		if (f != null) {
+			byte b = f.get(3 * INDEX_SIZE + headerbyte);
+			f.put(3 * INDEX_SIZE + headerbyte, (byte) (value ? b | (1 << headerbit) : b & (0xFF ^ (1 << headerbit))));
+			return;
+		}
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -499,7 +625,7 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	Tuple getTuple(int i) throws NoSuchElementException {
 
-		if (i >= tuples.length)
+		if (i >= numSlots)
 			throw new NoSuchElementException();
 
 		try {
@@ -509,6 +635,9 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
+			ByteBuffer f = frame;
+			if (f != null)
+				return PageArena.readTuple(f, slotOffset(i), td, new RecordId(pid, i));
 			return tuples[i];
 
 		} catch (ArrayIndexOutOfBoundsException e) {
@@ -3,10 +3,19 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -18,8 +27,37 @@ import java.util.concurrent.locks.ReentrantLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The frames are hash-partitioned by PageId into shards. Each shard has its
+ * own frame table, replacement policy and latch, so flushing or evicting in
+ * one shard never stalls readers of another. Hits are served without taking
+ * any latch.
+ * <p>
+ * In off-heap mode every shard also owns a {@link PageArena}; each cached
+ * page gets a frame, and heap and B+ tree leaf pages are views that decode
+ * their tuples from the frame instead of keeping Tuple objects around.
+ * <p>
+ * Dirty pages are written by a {@link PageCleaner}, which coalesces the
+ * writes of concurrent commits and keeps part of every shard clean.
+ * <p>
+ * With record locking on, heap file inserts and deletes lock single
+ * records instead of whole pages, so transactions change different records
+ * of one page concurrently. The pool then remembers every record change,
+ * writes the changed pages at commit, and undoes the changes record by
+ * record at abort instead of reading the pages back from disk.
+ * <p>
+ * By default the pool never writes pages of running transactions (NO
+ * STEAL) and writes all pages of a transaction when it commits (FORCE).
+ * With {@link #setStealNoForce} it relies on the {@link LogFile} instead:
+ * dirty pages may be evicted once their changes are logged, and commit
+ * only forces the log.
  *
- * @Threadsafe, all fields are final
+ * @Threadsafe. The page size is static and only changed by tests
+ * before any pages are read. The flags set by setReadAheadEnabled,
+ * setRecordLocking and setStealNoForce are volatile, so they are read
+ * without locks, and only change while no transactions run. All other
+ * fields are final; what they refer to is either a concurrent collection
+ * or guarded by a shard latch, as noted on each.
  */
 public class BufferPool {
     /**
@@ -29,24 +67,299 @@ public class BufferPool {
 
     private static int pageSize = PAGE_SIZE;
     private final LockManager lockManager = new LockManager();
+    private final VersionStore versions = new VersionStore();
     /**
      * Default number of pages passed to the constructor. This is used by
      * other classes. BufferPool should use the numPages argument to the
      * constructor instead.
      */
     public static final int DEFAULT_PAGES = 50;
-    private int numPages = 0;
-    private volatile ConcurrentHashMap<PageId, Page> pages;
+    /**
+     * Smallest number of frames a shard may own. A shard can only evict its
+     * own clean pages, so tiny shards would run out of clean frames long
+     * before the pool as a whole does.
+     */
+    public static final int MIN_PAGES_PER_SHARD = 64;
+    private final int numPages;
+    private final Shard[] shards;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private volatile boolean readAhead = true;
+    private volatile boolean recordLocking = false;
+    private volatile boolean stealNoForce = false;
+    /**
+     * Marks pages, under NO-FORCE, whose changes are committed and logged
+     * but not yet written; writing them needs no further log record.
+     */
+    private static final TransactionId COMMITTED = new TransactionId();
+    /**
+     * Dirty page table under NO-FORCE: for each page with committed changes
+     * that may not be on disk, the log LSN before its oldest such change.
+     * Entries go away once the page is written.
+     */
+    private final ConcurrentHashMap<PageId, Long> recLsns = new ConcurrentHashMap<>();
+    /**
+     * Under STEAL / NO-FORCE, the LSN of the end of the last log record of
+     * each dirty page that was logged: the log is forced up to it before
+     * the page is written, whether its transaction has committed or not.
+     */
+    private final ConcurrentHashMap<PageId, Long> pageLsns = new ConcurrentHashMap<>();
+    private final PageCleaner cleaner;
+    // pins held by each transaction, so they can be dropped when it ends
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Integer>> txPins =
+            new ConcurrentHashMap<>();
+    // record changes of each transaction under record locking, oldest first;
+    // a list is changed under its own monitor and the monitor of the page
+    private final ConcurrentHashMap<TransactionId, ArrayList<RecordChange>> recordChanges =
+            new ConcurrentHashMap<>();
+    // transactions under record locking whose changes are being written at commit
+    private final Set<TransactionId> committing = ConcurrentHashMap.newKeySet();
+    // under record locking, page images are taken and written under this, in order
+    private final Object recordWrites = new Object();
+
+    /** A record a transaction inserted, or deleted if deleted is set. */
+    private static class RecordChange {
+        final RecordId rid;
+        final Tuple deleted;
+
+        RecordChange(RecordId rid, Tuple deleted) {
+            this.rid = rid;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * One hash partition of the pool. The frame table may be read without
+     * the latch; installing, evicting, flushing and discarding pages must
+     * hold it.
+     */
+    private static class Shard {
+        final ConcurrentHashMap<PageId, Page> pages;
+        final ReplacementPolicy policy;
+        final int capacity;
+        final Lock latch = new ReentrantLock();
+        final PageArena arena;               // null unless off-heap
+        final HashMap<PageId, Integer> frames; // frame of each cached page, off-heap only
+        volatile int discards;               // bumped under the latch by discardPage
+        final ConcurrentHashMap<PageId, CountDownLatch> loading = new ConcurrentHashMap<>();
+        // pin count of every pinned page; removing an unpinned page from the
+        // frame table happens inside compute() on this map, see removeIfUnpinned
+        final ConcurrentHashMap<PageId, Integer> pins = new ConcurrentHashMap<>();
+
+        Shard(int capacity, ReplacementPolicy policy, boolean offHeap) {
+            this.pages = new ConcurrentHashMap<>(capacity);
+            this.capacity = capacity;
+            this.policy = policy;
+            this.arena = offHeap ? new PageArena(capacity) : null;
+            this.frames = offHeap ? new HashMap<PageId, Integer>(capacity) : null;
+        }
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * page replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        pages = new ConcurrentHashMap<>(numPages);
+        this(numPages, 1, ClockPolicy::new);
+    }
+
+    /**
+     * Creates a single-shard BufferPool that caches up to numPages pages and
+     * evicts pages in the order chosen by the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the replacement policy; owned by this pool from now on
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, 1, () -> policy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over
+     * numShards hash partitions, each with its own replacement policy.
+     * The number of shards is capped so that every shard owns at least
+     * {@link #MIN_PAGES_PER_SHARD} frames.
+     *
+     * @param numPages  maximum number of pages in this buffer pool.
+     * @param numShards requested number of shards
+     * @param policies  creates one replacement policy per shard
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Factory policies) {
+        this(numPages, numShards, policies, false);
+    }
+
+    /**
+     * Creates a BufferPool as above that, if offHeap is set, keeps page data
+     * in a fixed arena of direct ByteBuffer frames of numPages *
+     * getPageSize() bytes rather than in per-page heap objects.
+     *
+     * @param numPages  maximum number of pages in this buffer pool.
+     * @param numShards requested number of shards
+     * @param policies  creates one replacement policy per shard
+     * @param offHeap   whether to back cached pages with an off-heap arena
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Factory policies, boolean offHeap) {
         this.numPages = numPages;
-        // some code goes here
+        this.cleaner = new PageCleaner(this, PageCleaner.DEFAULT_QUEUE_SIZE);
+        int n = Math.max(1, Math.min(numShards, numPages / MIN_PAGES_PER_SHARD));
+        shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            int capacity = numPages / n + (i < numPages % n ? 1 : 0);
+            shards[i] = new Shard(capacity, policies.create(), offHeap);
+        }
+    }
+
+    private Shard shardOf(PageId pid) {
+        if (shards.length == 1)
+            return shards[0];
+        // Fibonacci hashing spreads neighbouring page numbers over all shards
+        int h = pid.hashCode() * 0x9E3779B9;
+        return shards[((h ^ (h >>> 16)) & 0x7fffffff) % shards.length];
+    }
+
+    /** @return true if this pool keeps page data in an off-heap arena */
+    public boolean isOffHeap() {
+        return shards[0].arena != null;
+    }
+
+    /** @return maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the lock manager of this pool, e.g. to read its deadlock counters */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the store of old page versions read by snapshot transactions */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Make tid a read-only snapshot transaction: from now on getPage
+     * returns, without taking any locks, a private copy of each page as it
+     * was committed when this method was called. The snapshot ends when the
+     * transaction completes.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** @return how long getPage waits for a lock before aborting the transaction, in ms */
+    public long getLockTimeout() {
+        return lockManager.getTimeout();
+    }
+
+    /**
+     * Set how long getPage waits for a conflicting lock to be released
+     * before it aborts the transaction, in ms.
+     */
+    public void setLockTimeout(long timeoutMillis) {
+        lockManager.setTimeout(timeoutMillis);
+    }
+
+    /** @return true if scans should read ahead through this pool */
+    public boolean isReadAheadEnabled() {
+        return readAhead;
+    }
+
+    /** Turn sequential read-ahead of scans over this pool on or off */
+    public void setReadAheadEnabled(boolean readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /** @return whether heap file inserts and deletes lock single records */
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Make heap file inserts and deletes lock single records (with intention
+     * locks on their pages) rather than whole pages, so that concurrent
+     * inserts into the last page of a table do not wait for each other.
+     * Change this only while no transactions run.
+     * <p>
+     * A page changed at commit may then also carry records of transactions
+     * that are still running. Those records are left out of the image that
+     * is written, and the page stays dirty until their transactions end, so
+     * that the disk only ever holds committed records. Snapshot transactions
+     * and the log still see whole pages, so they can observe such records.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        if (recordLocking && stealNoForce)
+            throw new IllegalStateException("record locking does not work with STEAL / NO-FORCE");
+        this.recordLocking = recordLocking;
+    }
+
+    /** @return whether the pool steals dirty pages and does not force them at commit */
+    public boolean isStealNoForce() {
+        return stealNoForce;
+    }
+
+    /**
+     * Switch from NO STEAL / FORCE to STEAL / NO-FORCE or back. Under
+     * STEAL, a dirty page of a running transaction can be written, e.g. to
+     * evict it, after an UPDATE record with its before and after image has
+     * been forced to the log. Under NO-FORCE, commit logs the pages of the
+     * transaction instead of writing them; the commit record forces the
+     * log, and the cleaner, eviction or a checkpoint write the pages later.
+     * {@link LogFile#rollback} and {@link LogFile#recover} take back the
+     * writes of transactions that do not commit.
+     * <p>
+     * Change this only while no transactions run. Record locking must be
+     * off, since the log holds whole pages.
+     */
+    public void setStealNoForce(boolean stealNoForce) {
+        if (stealNoForce && recordLocking)
+            throw new IllegalStateException("STEAL / NO-FORCE needs page-level locking");
+        this.stealNoForce = stealNoForce;
+    }
+
+    /** @return number of pages loaded by {@link #prefetchPage} */
+    public long getPrefetchCount() {
+        return prefetches.sum();
+    }
+
+    /** @return the background writer of this pool */
+    public PageCleaner getPageCleaner() {
+        return cleaner;
+    }
+
+    /** @return the number of shards this pool is split into */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /** @return the replacement policy of the first shard (all shards use the same kind) */
+    public ReplacementPolicy getReplacementPolicy() {
+        return shards[0].policy;
+    }
+
+    /** @return number of getPage calls served from the pool */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** @return number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** @return fraction of getPage calls served from the pool, 0 if none yet */
+    public double getHitRate() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Reset the hit and miss counters, e.g. after warming up the pool */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
     }
 
     public static int getPageSize() {
@@ -66,7 +379,8 @@ public class BufferPool {
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * transaction. A transaction that waits longer than the lock timeout
+     * (see {@link #setLockTimeout}) is aborted.
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -80,47 +394,350 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        boolean lock = lockManager.grantLock(pid,tid,perm);
-        int num = 0;
-        while (!lock) {
-            ++num;
-            if (num == 25 || lockManager.isYield(pid,tid,perm)) {
-                throw new TransactionAbortedException();
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Lock a whole table for the transaction: shared for READ_ONLY, which
+     * lets it read every page of the table without taking page locks, or
+     * exclusive for READ_WRITE. The lock is held until the transaction
+     * completes. Snapshot transactions take no locks, so this does nothing
+     * for them.
+     *
+     * @param tableId the id of the table's DbFile
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        if (!versions.isSnapshot(tid))
+            lockManager.acquireTableLock(tableId, tid, perm);
+    }
+
+    /**
+     * Retrieve the specified page as above on behalf of a scan that uses a
+     * private ring of frames: if the page has to be read from disk, it
+     * replaces the oldest page of the ring instead of whatever the
+     * replacement policy would evict.
+     *
+     * @param ring the scan's ring, or null to use the pool normally
+     * @see BufferRing
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, perm, ring, false, false);
+    }
+
+    /**
+     * Retrieve the specified page as {@link #getPage} does and pin it: the
+     * page cannot be evicted until the transaction calls {@link #unpinPage}
+     * (once per pin) or completes. Operators pin the page they are working
+     * on so that the object they hold is always the cached copy.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, perm, null, true, false);
+    }
+
+    /**
+     * Retrieve and pin the specified page on behalf of a scan that uses a
+     * private ring of frames.
+     *
+     * @param ring the scan's ring, or null to use the pool normally
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, perm, ring, true, false);
+    }
+
+    /**
+     * Drop one pin the transaction holds on the page; does nothing if it
+     * holds none.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        ConcurrentHashMap<PageId, Integer> mine = txPins.get(tid);
+        if (mine == null)
+            return;
+        boolean[] held = {false};
+        mine.computeIfPresent(pid, (k, n) -> {
+            held[0] = true;
+            return n > 1 ? n - 1 : null;
+        });
+        if (held[0])
+            shardOf(pid).pins.computeIfPresent(pid, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /** @return how many pins are currently held on the page */
+    public int getPinCount(PageId pid) {
+        Integer n = shardOf(pid).pins.get(pid);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * Retrieve and pin a page whose records the transaction reads or
+     * changes one by one: it gets an intention lock on the page (IS for
+     * READ_ONLY, IX for READ_WRITE) instead of a page lock. While it reads
+     * or changes slots it must synchronize on the page, and it must lock
+     * every record it touches with {@link #lockRecord} or
+     * {@link #tryLockRecord}.
+     */
+    public Page pinPageForRecords(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, perm, null, true, true);
+    }
+
+    /**
+     * Lock a record, waiting until the lock is granted.
+     *
+     * @see LockManager#acquireRecordLock
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquireRecordLock(rid, tid, perm);
+    }
+
+    /**
+     * Lock a record if that is possible without waiting; safe to call while
+     * holding a page latch.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions perm) {
+        return lockManager.grantRecordLock(rid, tid, perm);
+    }
+
+    /**
+     * Remember that tid inserted the record rid (or deleted it, if deleted
+     * is the tuple it removed) under record locking, so that the change is
+     * written at commit and undone at abort.
+     */
+    void recordChanged(TransactionId tid, RecordId rid, Tuple deleted) {
+        ArrayList<RecordChange> changes = recordChanges.computeIfAbsent(tid, k -> new ArrayList<>());
+        synchronized (changes) {
+            changes.add(new RecordChange(rid, deleted));
+        }
+    }
+
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring,
+                           boolean pin, boolean intention)
+            throws TransactionAbortedException, DbException {
+        boolean snapshot = versions.isSnapshot(tid);
+        if (!snapshot && intention)
+            lockManager.acquireIntentionLock(pid, tid, perm);
+        else if (!snapshot)
+            lockManager.acquireLock(pid, tid, perm);
+        Shard shard = shardOf(pid);
+        while (true) {
+            Page page = shard.pages.get(pid);
+            if (page != null) {
+                hits.increment();
+                shard.policy.pageAccessed(pid);
+            } else {
+                misses.increment();
+                if (ring != null)
+                    releaseRingPage(ring.add(pid));
+                page = loadPage(shard, pid, false);
             }
-            try {
-                Thread.sleep(100);
+            if (snapshot)
+                return versions.read(tid, page);
+            // a page can only be pinned while it is cached; if it was
+            // evicted in the meantime, fetch it again
+            if (!pin || tryPin(shard, tid, pid, page))
+                return page;
+        }
+    }
+
+    private boolean tryPin(Shard shard, TransactionId tid, PageId pid, Page page) {
+        boolean[] pinned = {false};
+        shard.pins.compute(pid, (k, n) -> {
+            if (shard.pages.get(k) != page)
+                return n;
+            pinned[0] = true;
+            return n == null ? 1 : n + 1;
+        });
+        if (pinned[0])
+            txPins.computeIfAbsent(tid, t -> new ConcurrentHashMap<>()).merge(pid, 1, Integer::sum);
+        return pinned[0];
+    }
+
+    /** Drop every pin the transaction still holds. */
+    private void releasePins(TransactionId tid) {
+        ConcurrentHashMap<PageId, Integer> mine = txPins.remove(tid);
+        if (mine == null)
+            return;
+        for (Map.Entry<PageId, Integer> e : mine.entrySet()) {
+            int held = e.getValue();
+            shardOf(e.getKey()).pins.computeIfPresent(e.getKey(), (k, n) -> n > held ? n - held : null);
+        }
+    }
+
+    /**
+     * Remove a page from its shard unless it is pinned. Checking the pin
+     * count and removing happen atomically with respect to tryPin. The
+     * caller must hold the shard latch.
+     *
+     * @return the removed page, or null if it is pinned or not cached
+     */
+    private Page removeIfUnpinned(Shard shard, PageId pid) {
+        Page[] removed = {null};
+        shard.pins.compute(pid, (k, n) -> {
+            if (n == null)
+                removed[0] = shard.pages.remove(k);
+            return n;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Read a page into the pool without locking it, as a hint that a scan
+     * will ask for it soon (see {@link ReadAhead}). Never blocks on locks
+     * and never fails.
+     *
+     * @return the cached page, or null if it could not be loaded (e.g. it
+     *   does not exist or there is no clean page to evict)
+     */
+    public Page prefetchPage(PageId pid) {
+        return prefetchPage(pid, null);
+    }
+
+    /**
+     * Prefetch a page as above into the given scan ring.
+     *
+     * @param ring the scan's ring, or null to use the pool normally
+     */
+    public Page prefetchPage(PageId pid, BufferRing ring) {
+        Shard shard = shardOf(pid);
+        Page page = shard.pages.get(pid);
+        if (page != null)
+            return page;
+        if (ring != null)
+            releaseRingPage(ring.add(pid));
+        try {
+            page = loadPage(shard, pid, true);
+        } catch (DbException e) {
+            return null;
+        }
+        if (page != null)
+            prefetches.increment();
+        return page;
+    }
+
+    /**
+     * Read a page that is not cached from disk and install it in its shard.
+     * Disk I/O happens without the shard latch; in off-heap mode a frame is
+     * reserved for the page first. Only one thread reads a given page at a
+     * time; others wait for it and use its copy.
+     * <p>
+     * A prefetch holds no lock on the page, so it gives up (returning null)
+     * if the page is already being read, or if a page of the shard was
+     * discarded while it was reading, since the disk image may be stale.
+     */
+    private Page loadPage(Shard shard, PageId pid, boolean prefetch) throws DbException {
+        CountDownLatch mine = new CountDownLatch(1);
+        CountDownLatch other = shard.loading.putIfAbsent(pid, mine);
+        if (other != null) {
+            if (prefetch)
+                return null;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    other.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
-            catch (InterruptedException e) {
-                throw new TransactionAbortedException();
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            Page cached = shard.pages.get(pid);
+            // the other reader may have failed, or the page was evicted since
+            return cached != null ? cached : loadPage(shard, pid, false);
+        }
+        try {
+            return readAndInstall(shard, pid, prefetch);
+        } finally {
+            shard.loading.remove(pid);
+            mine.countDown();
+        }
+    }
+
+    private Page readAndInstall(Shard shard, PageId pid, boolean prefetch) throws DbException {
+        int discards = shard.discards;
+        int frameNo = -1;
+        if (shard.arena != null) {
+            shard.latch.lock();
+            try {
+                frameNo = reserveFrame(shard);
+            } finally {
+                shard.latch.unlock();
             }
-            lock = lockManager.grantLock(pid,tid,perm);
         }
+        Page page;
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            page = frameNo < 0 ? file.readPage(pid) : file.readPage(pid, shard.arena.frame(frameNo));
+        } catch (Exception e) {
+            if (frameNo >= 0)
+                shard.arena.release(frameNo);
+            throw new DbException("could not read page " + pid.pageNumber() + " of table "
+                    + pid.getTableId() + ": " + e);
+        }
+        shard.latch.lock();
         try {
-            if (pages.containsKey(pid)) {
-                return pages.get(pid);
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                // another thread read the same page while we were on disk
+                if (frameNo >= 0)
+                    shard.arena.release(frameNo);
+                shard.policy.pageAccessed(pid);
+                return cached;
             }
-            if (pages.size() < numPages) {
-                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pages.put(pid, page);
-                return page;
-            } else {
-                Iterator<PageId> iter = pages.keySet().iterator();
-                PageId evict = iter.next();
-                while (pages.get(evict).isDirty() != null) {
-                    if (!iter.hasNext())
-                        throw new DbException("no enough clean page");
-                    evict = iter.next();
-                }
-                flushPage(evict);
-                pages.remove(evict);
-                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pages.put(pid, page);
-                return page;
+            if (prefetch && discards != shard.discards) {
+                if (frameNo >= 0)
+                    shard.arena.release(frameNo);
+                return null;
             }
-        } catch (Exception e) {
-            throw new DbException("Undefined Error");
+            if (shard.arena == null && shard.pages.size() >= shard.capacity)
+                evictPage(shard);
+            shard.pages.put(pid, page);
+            shard.policy.pageAdded(pid);
+            if (frameNo >= 0)
+                shard.frames.put(pid, frameNo);
+        } finally {
+            shard.latch.unlock();
         }
-        // some code goes here
+        return page;
+    }
+
+    /**
+     * Drop a page that fell out of a scan ring, so that the next page of the
+     * scan can reuse its frame. Pages dirtied since the scan read them stay.
+     */
+    private void releaseRingPage(PageId pid) {
+        if (pid == null)
+            return;
+        Shard shard = shardOf(pid);
+        shard.latch.lock();
+        try {
+            Page page = shard.pages.get(pid);
+            if (page != null && page.isDirty() == null && removeIfUnpinned(shard, pid) != null)
+                releaseFrame(shard, pid, page);
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Take a free arena frame, evicting a page if there is none. The caller
+     * must hold the shard latch.
+     */
+    private int reserveFrame(Shard shard) throws DbException {
+        int frameNo = shard.arena.allocate();
+        if (frameNo < 0) {
+            evictPage(shard);
+            frameNo = shard.arena.allocate();
+        }
+        if (frameNo < 0)
+            throw new DbException("no enough clean page");
+        return frameNo;
     }
 
     /**
@@ -153,41 +770,115 @@ public class BufferPool {
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * Abort restores every page the transaction dirtied from its before
+     * image, which commits keep up to date, without any disk reads.
+     * <p>
+     * Under STEAL / NO-FORCE, a transaction that has log records but did
+     * not go through {@link Transaction} gets its commit or abort record
+     * here; the abort record comes with a rollback of the pages it stole.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
-        lockManager.releaseTransaction(tid);
-        if (commit) {
-            flushPages(tid);
-        } else {
-            ArrayList<Page> oldpages = new ArrayList<>();
-            for (Page page : pages.values()) {
-                if (page.isDirty() != null && page.isDirty().equals(tid)) {
-                    PageId pid = page.getId();
-                    Page old = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                    old.markDirty(false, null);
-                    oldpages.add(old);
-                }
-            }
-            for (Page page: oldpages) {
-                pages.put(page.getId(),page);
+        releasePins(tid);
+        LogFile log = Database.getLogFile();
+        try {
+            if (commit) {
+                flushPages(tid);
+                if (stealNoForce && log.isActive(tid))
+                    log.logCommit(tid);
+                versions.publish(tid);
+            } else {
+                if (stealNoForce && log.isActive(tid))
+                    log.logAbort(tid);
+                versions.discard(tid);
+                // undo record changes first: that writes their pages, so the loop
+                // below does not restore before images over other transactions' records
+                undoRecordChanges(tid);
+                restoreBeforeImages(tid);
             }
+        } finally {
+            // even if writing or logging failed, so that the transaction
+            // does not keep its snapshot and locks forever
+            recordChanges.remove(tid);
+            committing.remove(tid);
+            // a no-op unless the commit failed between prepare and publish
+            versions.discard(tid);
+            versions.end(tid);
+            // keep the locks until the pages are written or restored
+            lockManager.releaseTransaction(tid);
         }
         // some code goes here
         // not necessary for lab1|lab2
     }
 
+    /**
+     * Replace every cached page tid dirtied by a copy of its before image.
+     * Under NO-FORCE the committed state may not be on disk yet, so the
+     * copies stay dirty.
+     */
+    void restoreBeforeImages(TransactionId tid) {
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                ArrayList<Page> oldpages = new ArrayList<>();
+                for (Page page : shard.pages.values()) {
+                    if (page.isDirty() != null && page.isDirty().equals(tid)) {
+                        // the before image is the last committed state of
+                        // the page, so no need to read it from disk again
+                        Page old = page.getBeforeImage();
+                        // the restored copy lives on the heap; the frame
+                        // stays reserved for the page until it is evicted
+                        if (page instanceof FramedPage)
+                            ((FramedPage) page).detachFrame();
+                        if (stealNoForce)
+                            old.markDirty(true, COMMITTED);
+                        else
+                            old.markDirty(false, null);
+                        oldpages.add(old);
+                    }
+                }
+                for (Page page : oldpages) {
+                    shard.pages.put(page.getId(), page);
+                }
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write a page image straight to disk and drop the cached copy of the
+     * page; used by rollback and recovery to install committed images. This
+     * happens under the shard latch, so nobody can evict, write or read
+     * ahead the page in between.
+     */
+    void restorePage(Page image) throws IOException {
+        PageId pid = image.getId();
+        Shard shard = shardOf(pid);
+        shard.latch.lock();
+        try {
+            shard.discards++;
+            Page page = shard.pages.remove(pid);
+            if (page != null)
+                releaseFrame(shard, pid, page);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            recLsns.remove(pid);
+            pageLsns.remove(pid);
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
@@ -205,35 +896,14 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        if (versions.isSnapshot(tid))
+            throw new DbException("snapshot transactions are read-only");
         ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for (Page page : pages){
+        for (Page page : pages) {
             page.markDirty(true, tid);
-            PageId pid = page.getId();
-            if (this.pages.containsKey(pid)) {
-                this.pages.put(pid,page);
-                continue;
-            }
-            if (this.pages.size() < numPages) {
-                this.pages.put(pid, page);
-            } else {
-                Iterator<PageId> iter = this.pages.keySet().iterator();
-                PageId evict = iter.next();
-                boolean mark = false;
-                while (this.pages.get(evict).isDirty() != null) {
-                    if (!iter.hasNext()) {
-                        mark = true;
-                        break;
-                    }
-                    evict = iter.next();
-                }
-                if (mark) {
-                    flushPage(page.getId());
-                    continue;
-                }
-                flushPage(evict);
-                this.pages.remove(evict);
-                this.pages.put(pid, page);
-            }
+            cachePage(page);
+            // files pin the pages they modify until they are back in the pool
+            unpinPage(tid, page.getId());
         }
         // some code goes here
         // not necessary for lab1
@@ -256,11 +926,13 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (versions.isSnapshot(tid))
+            throw new DbException("snapshot transactions are read-only");
         ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
         for (Page tmp : pages) {
             tmp.markDirty(true, tid);
-            pages.remove(tmp.getId());
-            this.pages.put(tmp.getId(), tmp);
+            cachePage(tmp);
+            unpinPage(tid, tmp.getId());
         }
     }
 
@@ -269,13 +941,22 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Enumeration<PageId> tmp = pages.keys();
-        while (tmp.hasMoreElements()) {
-            flushPage(tmp.nextElement());
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                for (Page page : shard.pages.values()) {
+                    if (page.isDirty() != null)
+                        dirty.add(page);
+                }
+            } finally {
+                shard.latch.unlock();
+            }
         }
+        writePages(dirty);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -286,51 +967,448 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pages.remove(pid);
+        Shard shard = shardOf(pid);
+        shard.latch.lock();
+        try {
+            shard.discards++;
+            Page page = shard.pages.remove(pid);
+            if (page != null)
+                releaseFrame(shard, pid, page);
+            recLsns.remove(pid);
+            pageLsns.remove(pid);
+        } finally {
+            shard.latch.unlock();
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk. The caller must hold the shard latch.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(Shard shard, PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if (pages.containsKey(pid)) {
-            Page tmp = pages.get(pid);
-            if (tmp.isDirty() != null) {
-                DbFile dbf = Database.getCatalog().getDatabaseFile(tmp.getId().getTableId());
-                dbf.writePage(tmp);
-                tmp.markDirty(false, null);
-            }
+        Page tmp = shard.pages.get(pid);
+        if (tmp != null && tmp.isDirty() != null) {
+            logSteals(Collections.singletonList(tmp));
+            DbFile dbf = Database.getCatalog().getDatabaseFile(tmp.getId().getTableId());
+            dbf.writePage(tmp);
+            tmp.markDirty(false, null);
+            recLsns.remove(pid);
+            pageLsns.remove(pid);
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * Under NO-FORCE the pages are logged instead and become the committed
+     * state of the pages, so only call this when tid commits; its commit
+     * record then makes the changes durable.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException
+    public void flushPages(TransactionId tid) throws IOException
     {
-        if (pages.isEmpty())
-            return;
-        for (Page page : pages.values()) {
-            if (page.isDirty() != null && page.isDirty().equals(tid)) {
-                flushPage(page.getId());
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        // pages whose records tid changed may have been dirtied by others since
+        HashSet<PageId> changed = new HashSet<>();
+        for (RecordChange c : recordChanges.getOrDefault(tid, new ArrayList<>()))
+            changed.add(c.rid.getPageId());
+        if (!changed.isEmpty())
+            committing.add(tid);
+        for (Shard shard : shards) {
+            if (shard.pages.isEmpty())
+                continue;
+            shard.latch.lock();
+            try {
+                for (Page page : shard.pages.values()) {
+                    TransactionId dirtier = page.isDirty();
+                    if (dirtier != null && (dirtier.equals(tid) || changed.contains(page.getId()))) {
+                        dirty.add(page);
+                    }
+                }
+            } finally {
+                shard.latch.unlock();
             }
         }
+        // under record locking, others may still change records of these
+        // pages; writePages leaves those changes out. Snapshots keep reading
+        // the committed images until the commit is published
+        versions.prepare(tid, dirty);
+        if (stealNoForce)
+            logCommitted(tid, dirty);
+        else
+            cleaner.writeAndWait(dirty);
         // some code goes here
         // not necessary for lab1|lab2
     }
 
+    /*
+     * NO-FORCE commit: log the after images of tid's dirty pages, and keep
+     * the pages dirty as committed state, to be written whenever convenient.
+     * The commit record is only forced after this, so writing one of the
+     * pages still forces the log up to its record first; should the commit
+     * record not make it to disk, recovery then undoes the page.
+     * The pool copy of a page may have been read again after a steal, so
+     * its before image is moved forward here rather than only by publish.
+     */
+    private void logCommitted(TransactionId tid, List<Page> dirty) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (Page page : dirty) {
+            // before the record, so any checkpoint that follows it sees the page
+            recLsns.putIfAbsent(page.getId(), log.currentLsn());
+            pageLsns.put(page.getId(), log.logWrite(tid, page.getBeforeImage(), page));
+        }
+        for (Page page : dirty) {
+            Shard shard = shardOf(page.getId());
+            shard.latch.lock();
+            try {
+                page.setBeforeImage();
+                page.markDirty(true, COMMITTED);
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+    }
+
+    /*
+     * Under STEAL, log the pages of running transactions among the given
+     * dirty pages, and force the log up to the last record of every page
+     * before they are written, so that recovery can take the writes back.
+     * Snapshots keep reading the committed images until the transactions
+     * finish.
+     */
+    private void logSteals(Collection<Page> pages) throws IOException {
+        if (!stealNoForce)
+            return;
+        LogFile log = Database.getLogFile();
+        long lsn = 0; // the end of the last record of any of the pages
+        for (Page page : pages) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null)
+                continue;
+            if (dirtier != COMMITTED) {
+                versions.prepare(dirtier, Collections.singletonList(page));
+                pageLsns.put(page.getId(), log.logWrite(dirtier, page.getBeforeImage(), page));
+            }
+            Long pageLsn = pageLsns.get(page.getId());
+            if (pageLsn != null)
+                lsn = Math.max(lsn, pageLsn);
+        }
+        if (lsn > 0)
+            log.force(lsn);
+    }
+
+    /*
+     * Take back tid's record changes, newest first, and write the pages, as
+     * they may have been written with the changes by other commits.
+     */
+    private void undoRecordChanges(TransactionId tid) throws IOException {
+        ArrayList<RecordChange> changes = recordChanges.get(tid);
+        if (changes == null)
+            return;
+        LinkedHashMap<PageId, Page> undone = new LinkedHashMap<>();
+        try {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                RecordChange c = changes.get(i);
+                PageId pid = c.rid.getPageId();
+                // tid still holds the intention lock, so this does not wait
+                HeapPage page = (HeapPage) fetchPage(tid, pid, Permissions.READ_WRITE, null, false, true);
+                synchronized (page) {
+                    undoRecordChange(page, c);
+                    page.markDirty(true, tid);
+                    // together with the page, so that committedImage sees both or neither
+                    synchronized (changes) {
+                        changes.remove(i);
+                    }
+                }
+                undone.put(pid, page);
+            }
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException("could not undo the record changes of " + tid, e);
+        }
+        recordChanges.remove(tid);
+        writePages(undone.values());
+    }
+
+    private static void undoRecordChange(HeapPage page, RecordChange c) throws DbException {
+        if (c.deleted != null) {
+            page.insertTuple(c.deleted, c.rid.tupleno());
+        } else {
+            Tuple t = new Tuple(Database.getCatalog().getTupleDesc(c.rid.getPageId().getTableId()));
+            t.setRecordId(c.rid);
+            page.deleteTuple(t);
+        }
+    }
+
+    /*
+     * Under record locking, the image of a page that may go to disk: a copy
+     * without the record changes of transactions that are not committing,
+     * or the page itself if it has none. Must hold the page monitor, under
+     * which record writers change a slot and note the change.
+     */
+    private Page committedImage(HeapPage page) throws IOException {
+        HeapPage image = null;
+        for (Map.Entry<TransactionId, ArrayList<RecordChange>> entry : recordChanges.entrySet()) {
+            if (committing.contains(entry.getKey()))
+                continue;
+            ArrayList<RecordChange> changes = entry.getValue();
+            synchronized (changes) {
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    RecordChange c = changes.get(i);
+                    if (!c.rid.getPageId().equals(page.getId()))
+                        continue;
+                    try {
+                        if (image == null)
+                            image = new HeapPage(page.getId(), page.getPageData());
+                        undoRecordChange(image, c);
+                    } catch (DbException e) {
+                        throw new IOException("could not leave out the records of " + entry.getKey(), e);
+                    }
+                }
+            }
+        }
+        return image != null ? image : page;
+    }
+
+    /**
+     * Write the given dirty pages and mark them clean. Pages are grouped by
+     * file and sorted by page number so that each file can merge adjacent
+     * pages into one write.
+     */
+    void writePages(Collection<Page> pages) throws IOException {
+        if (!recordLocking) {
+            writeImages(pages);
+            return;
+        }
+        // an image taken later must not be overwritten by an earlier one
+        synchronized (recordWrites) {
+            writeImages(pages);
+        }
+    }
+
+    private void writeImages(Collection<Page> pages) throws IOException {
+        logSteals(pages);
+        HashMap<Integer, LinkedHashMap<PageId, Page>> byFile = new HashMap<>();
+        // pages written without some uncommitted records, which stay dirty
+        HashSet<Page> partial = new HashSet<>();
+        for (Page page : pages) {
+            Page image = page;
+            if (recordLocking && page instanceof HeapPage) {
+                synchronized (page) {
+                    image = committedImage((HeapPage) page);
+                }
+                if (image != page)
+                    partial.add(page);
+            }
+            int tableId = page.getId().getTableId();
+            if (!byFile.containsKey(tableId))
+                byFile.put(tableId, new LinkedHashMap<PageId, Page>());
+            byFile.get(tableId).put(page.getId(), image);
+        }
+        for (Map.Entry<Integer, LinkedHashMap<PageId, Page>> e : byFile.entrySet()) {
+            ArrayList<Page> sorted = new ArrayList<Page>(e.getValue().values());
+            sorted.sort(Comparator.comparingInt(p -> p.getId().pageNumber()));
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(sorted);
+            cleaner.recordWrite(sorted);
+        }
+        for (Page page : pages) {
+            if (partial.contains(page))
+                continue;
+            Shard shard = shardOf(page.getId());
+            shard.latch.lock();
+            try {
+                page.markDirty(false, null);
+                recLsns.remove(page.getId());
+                pageLsns.remove(page.getId());
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+    }
+
     /**
-     * Discards a page from the buffer pool.
+     * Called by the PageCleaner: in every shard where fewer than
+     * cleanFraction of the frames are clean, write back dirty pages whose
+     * transaction has finished. The pages of running transactions are never
+     * written here, even under STEAL; the cleaner recognizes them because
+     * their transaction still holds the write lock, so it briefly takes a
+     * shared lock on each page it writes.
+     *
+     * @return the number of pages written
+     */
+    int cleanShards(double cleanFraction) throws IOException {
+        int written = 0;
+        for (Shard shard : shards) {
+            TransactionId cleanerTid = new TransactionId();
+            ArrayList<Page> victims = new ArrayList<Page>();
+            shard.latch.lock();
+            try {
+                int dirty = 0;
+                for (Page page : shard.pages.values()) {
+                    if (page.isDirty() != null)
+                        dirty++;
+                }
+                int need = dirty - (int) ((1 - cleanFraction) * shard.capacity);
+                for (Page page : shard.pages.values()) {
+                    if (victims.size() >= need)
+                        break;
+                    if (page.isDirty() != null
+                            && lockManager.grantLock(page.getId(), cleanerTid, Permissions.READ_ONLY))
+                        victims.add(page);
+                }
+            } finally {
+                shard.latch.unlock();
+            }
+            try {
+                writePages(victims);
+            } finally {
+                // also drops the table intention locks
+                lockManager.releaseTransaction(cleanerTid);
+            }
+            written += victims.size();
+        }
+        return written;
+    }
+
+    /**
+     * Called by {@link LogFile#logCheckpoint} under its monitor, so it takes
+     * no latches: the pages with committed changes that may not be on disk,
+     * each with the LSN redo has to start from for it. Pages that are clean
+     * or gone from the pool have been written since.
+     */
+    Map<PageId, Long> getDirtyPageTable() {
+        HashMap<PageId, Long> table = new HashMap<>();
+        for (Map.Entry<PageId, Long> e : recLsns.entrySet()) {
+            Page page = shardOf(e.getKey()).pages.get(e.getKey());
+            if (page != null && page.isDirty() != null)
+                table.put(e.getKey(), e.getValue());
+        }
+        return table;
+    }
+
+    /**
+     * Called by the PageCleaner under NO-FORCE: if recovery would have to
+     * redo more than maxBytes of log, write the committed pages whose
+     * oldest change lies in the older half of that and take a checkpoint,
+     * so that the next recovery starts after them. Like cleanShards, it
+     * skips pages that running transactions have locked.
+     *
+     * @return the number of pages written
+     */
+    int limitRedoWindow(long maxBytes) throws IOException {
+        LogFile log = Database.getLogFile();
+        // a pool that was replaced, as tests do, does not log there
+        if (!stealNoForce || Database.getBufferPool() != this || log.getRedoWindow() <= maxBytes)
+            return 0;
+        long end = log.currentLsn();
+        long target = end - maxBytes / 2;
+        TransactionId cleanerTid = new TransactionId();
+        ArrayList<Page> victims = new ArrayList<Page>();
+        try {
+            for (Map.Entry<PageId, Long> e : getDirtyPageTable().entrySet()) {
+                if (e.getValue() >= target)
+                    continue;
+                Shard shard = shardOf(e.getKey());
+                shard.latch.lock();
+                try {
+                    Page page = shard.pages.get(e.getKey());
+                    if (page != null && page.isDirty() != null
+                            && lockManager.grantLock(page.getId(), cleanerTid, Permissions.READ_ONLY))
+                        victims.add(page);
+                } finally {
+                    shard.latch.unlock();
+                }
+            }
+            writePages(victims);
+        } finally {
+            lockManager.releaseTransaction(cleanerTid);
+        }
+        // a checkpoint only helps if it moves the start of redo enough
+        long oldest = end;
+        for (long lsn : getDirtyPageTable().values())
+            oldest = Math.min(oldest, lsn);
+        if (log.getRedoWindow() - (end - oldest) >= maxBytes / 2)
+            log.logCheckpoint();
+        return victims.size();
+    }
+
+    /**
+     * Install a page that was dirtied by insertTuple/deleteTuple in the pool,
+     * replacing any cached version and evicting another page if its shard is full.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Shard shard = shardOf(pid);
+        cleaner.wake();
+        shard.latch.lock();
+        try {
+            if (shard.pages.containsKey(pid)) {
+                Page old = shard.pages.put(pid, page);
+                if (old != page && old instanceof FramedPage)
+                    ((FramedPage) old).detachFrame();
+                shard.policy.pageAccessed(pid);
+                return;
+            }
+            if (shard.arena != null)
+                shard.frames.put(pid, reserveFrame(shard));
+            else if (shard.pages.size() >= shard.capacity)
+                evictPage(shard);
+            shard.pages.put(pid, page);
+            shard.policy.pageAdded(pid);
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Discards a page from the given shard of the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the shard's replacement policy among clean,
+     * unpinned pages; under STEAL, a dirty page is written and evicted if
+     * there are none. This is the only place pages are evicted. The caller
+     * must hold the shard latch.
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(Shard shard) throws DbException {
         // some code goes here
         // not necessary for lab1
+        while (true) {
+            PageId victim = shard.policy.chooseVictim(pid -> {
+                Page p = shard.pages.get(pid);
+                return p != null && p.isDirty() == null && !shard.pins.containsKey(pid);
+            });
+            if (victim == null && stealNoForce)
+                victim = shard.policy.chooseVictim(pid -> shard.pages.containsKey(pid) && !shard.pins.containsKey(pid));
+            if (victim == null)
+                throw new DbException("no enough clean page");
+            try {
+                flushPage(shard, victim);
+            } catch (IOException e) {
+                throw new DbException("could not flush page " + victim.pageNumber() + " on eviction");
+            }
+            Page page = removeIfUnpinned(shard, victim);
+            if (page != null) {
+                releaseFrame(shard, victim, page);
+                return;
+            }
+            // pinned after it was chosen; pick another victim
+        }
+    }
 
+    /**
+     * Forget a page that was just removed from its shard's frame table and,
+     * in off-heap mode, return its frame to the arena. The caller must hold
+     * the shard latch.
+     */
+    private void releaseFrame(Shard shard, PageId pid, Page page) {
+        shard.policy.pageRemoved(pid);
+        if (shard.arena == null)
+            return;
+        if (page instanceof FramedPage)
+            ((FramedPage) page).detachFrame();
+        Integer frameNo = shard.frames.remove(pid);
+        if (frameNo != null)
+            shard.arena.release(frameNo);
     }
 }
\ No newline at end of file
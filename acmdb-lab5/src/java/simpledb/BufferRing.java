@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * BufferRing is a small private set of frames that a large one-off scan
+ * recycles, so that streaming a big table through the BufferPool does not
+ * evict the pages everybody else keeps using (B+ tree roots and internal
+ * pages, small hot tables).
+ * <p>
+ * Pages the scan finds already cached are used as usual. Pages the scan has
+ * to read are remembered in the ring; once the ring is full, every new page
+ * pushes the oldest ring page out of the pool again, unless that page has
+ * been dirtied in the meantime. The scan therefore never occupies more
+ * than {@link #size()} frames.
+ * <p>
+ * SeqScan picks a ring automatically with {@link #forScan} when the table
+ * is larger than {@link #SCAN_THRESHOLD} of the pool.
+ */
+public class BufferRing {
+    /**
+     * Scans larger than this fraction of the pool use a ring. Smaller
+     * tables are likely to be scanned again while still cached, so they go
+     * through the pool normally.
+     */
+    public static final double SCAN_THRESHOLD = 0.75;
+    /** Largest ring handed to a scan, in pages */
+    public static final int MAX_SIZE = 32;
+    /** Rings smaller than this are not worth it; such pools scan normally */
+    public static final int MIN_SIZE = 4;
+
+    private final PageId[] slots;
+    private int next = 0;
+
+    /**
+     * Create a ring of the given number of frames.
+     */
+    public BufferRing(int size) {
+        slots = new PageId[size];
+    }
+
+    /**
+     * Decide whether a scan of the given size should use a ring.
+     *
+     * @param pool the pool the scan reads through
+     * @param estimatedPages number of pages the scan is expected to read
+     * @return a new ring, or null if the scan should use the pool normally
+     */
+    public static BufferRing forScan(BufferPool pool, int estimatedPages) {
+        int size = Math.min(MAX_SIZE, pool.getNumPages() / 4);
+        if (size < MIN_SIZE || estimatedPages <= SCAN_THRESHOLD * pool.getNumPages())
+            return null;
+        return new BufferRing(size);
+    }
+
+    /** @return the number of frames in this ring */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Remember a page the scan just read into the pool.
+     *
+     * @return the page that falls out of the ring, or null while the ring
+     *   is not full yet
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return old;
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) page replacement.
+ * <p>
+ * Resident pages sit in a circular array of frames, each with a reference
+ * bit. A hit sets the bit; the clock hand sweeps the frames, clearing set
+ * bits and evicting the first evictable frame whose bit is already clear.
+ * <p>
+ * Newly loaded pages start with a clear reference bit, so a page that is
+ * read exactly once (e.g. by a large SeqScan) is the first thing the hand
+ * reclaims, while pages that are hit again (B+ tree root and internal
+ * pages) survive at least one full sweep.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames = new ArrayList<PageId>();
+    private final BitSet referenced = new BitSet();
+    private final HashMap<PageId, Integer> slotOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    public synchronized void pageAdded(PageId pid) {
+        if (slotOf.containsKey(pid))
+            return;
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = frames.size();
+            frames.add(pid);
+        } else {
+            slot = freeSlots.pop();
+            frames.set(slot, pid);
+        }
+        referenced.clear(slot);
+        slotOf.put(pid, slot);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null)
+            referenced.set(slot);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            frames.set(slot, null);
+            referenced.clear(slot);
+            freeSlots.push(slot);
+        }
+    }
+
+    public synchronized PageId chooseVictim(VictimFilter filter) {
+        int n = frames.size();
+        if (n == 0)
+            return null;
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            int cur = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(cur);
+            if (pid == null)
+                continue;
+            if (referenced.get(cur)) {
+                referenced.clear(cur);
+                continue;
+            }
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "CLOCK";
+    }
+}
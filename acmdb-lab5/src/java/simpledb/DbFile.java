@@ -3,6 +3,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -19,6 +20,20 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into a frame of the BufferPool's
+     * off-heap {@link PageArena}. Files whose pages can act as views over a
+     * frame return such a view; the default falls back to
+     * {@link #readPage(PageId)} and leaves the frame unused.
+     *
+     * @param id the page to read
+     * @param frame a page sized buffer the returned page may keep using
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     */
+    default Page readPage(PageId id, ByteBuffer frame) {
+        return readPage(id);
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -28,6 +43,18 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk. Files may merge adjacent
+     * pages into a single write; the default writes them one at a time.
+     *
+     * @param pages the pages to write, sorted by page number
+     * @throws IOException if the write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -68,6 +95,17 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator as above for a large scan that reads its pages
+     * through the given {@link BufferRing}, so that it does not flush the
+     * rest of the BufferPool. The default ignores the ring.
+     *
+     * @param ring the scan's ring, or null to use the pool normally
+     */
+    default DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return iterator(tid);
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -0,0 +1,18 @@
+package simpledb;
+
+/**
+ * A page that can live as a view over a frame of a {@link PageArena}.
+ * <p>
+ * Before the BufferPool hands a frame to another page it calls
+ * {@link #detachFrame}, which copies the page bytes onto the heap, so
+ * operators that still hold a reference to an evicted page keep seeing its
+ * contents.
+ */
+public interface FramedPage extends Page {
+
+    /** @return true if this page currently decodes its data from an arena frame */
+    public boolean isFrameBacked();
+
+    /** Stop using the arena frame; later reads and writes go to a private heap copy. */
+    public void detachFrame();
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static java.lang.System.in;
@@ -93,14 +94,38 @@ public class HeapFile implements DbFile {
 
 
 
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        if (pid.pageNumber() < 0 || pid.pageNumber() >= numPages())
+            throw new IllegalArgumentException("Read past end of table");
+        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r"))
+        {
+            PageArena.load(raf, (long) pid.pageNumber() * BufferPool.getPageSize(), frame);
+            return new HeapPage((HeapPageId) pid, frame);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        PageId pid = page.getId();
-        RandomAccessFile randomAccessFile = new RandomAccessFile(f, "rws");
-        randomAccessFile.skipBytes(pid.pageNumber() * Database.getBufferPool().getPageSize());
-        randomAccessFile.write(page.getPageData());
+        writePages(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(f, "rw");
+        try {
+            PageCleaner.writeCoalesced(randomAccessFile, pages, 0, 0);
+            // one sync for the whole batch instead of opening the file "rws"
+            randomAccessFile.getFD().sync();
+        } finally {
+            randomAccessFile.close();
+        }
     }
 
 
@@ -117,43 +142,26 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        ArrayList<Page> pages = new ArrayList<>();
-        for (int i = 0; i <= numPages(); i++)
+        if (Database.getBufferPool().isRecordLocking())
+            return insertRecord(tid, t);
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; ; i++)
         {
+            // a new page is written empty and then changed in the pool like
+            // any other, so that the insert is locked, logged and undone
+            if (i == numPages())
+                appendEmptyPage(i);
             HeapPageId hpid = new HeapPageId(getId(), i);
-            HeapPage heapPage;
-            if (i < numPages())
-                heapPage = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
-            else heapPage = new HeapPage(hpid, HeapPage.createEmptyPageData());
+            HeapPage heapPage = (HeapPage) bp.getPage(tid, hpid, Permissions.READ_WRITE);
             if (heapPage.getNumEmptySlots() > 0)
             {
+                // pin the page we modify until BufferPool.insertTuple has cached it
+                heapPage = (HeapPage) bp.pinPage(tid, hpid, Permissions.READ_WRITE);
                 heapPage.insertTuple(t);
-
-                if (i < numPages())
-                {
-                    heapPage.markDirty(true,tid);
-                    pages.add(heapPage);
-                }
-                //pages.add(heapPage);
-                else writePage(heapPage);
-                return pages;
+                heapPage.markDirty(true, tid);
+                return new ArrayList<>(Collections.singletonList(heapPage));
             }
-
         }
-        //if (pages.size() == 0)
-        // {
-        //     HeapPageId hpid = new HeapPageId(getId(), numPages());
-        //     //HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
-        //     HeapPage newPage = new HeapPage(hpid, HeapPage.createEmptyPageData());
-        //    newPage.insertTuple(t);
-        //heapPage.markDirty(true,tid);
-        //    pages.add(newPage);
-        //    writePage(newPage);
-
-        //}
-        //return pages;
-        throw new DbException("HeapFile: InsertTuple wrong");
-        // not necessary for lab1
     }
 
 
@@ -161,6 +169,8 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
+        if (Database.getBufferPool().isRecordLocking())
+            return deleteRecord(tid, t);
         ArrayList<Page> pages = new ArrayList<>();
         RecordId rid = t.getRecordId();
         HeapPageId hpid= (HeapPageId)rid.getPageId();
@@ -168,7 +178,7 @@ public class HeapFile implements DbFile {
         {
             if (i == hpid.pageNumber())
             {
-                HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
+                HeapPage heapPage = (HeapPage) Database.getBufferPool().pinPage(tid, hpid, Permissions.READ_WRITE);
                 heapPage.deleteTuple(t);
                 heapPage.markDirty(true, tid);
                 pages.add(heapPage);
@@ -179,6 +189,64 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    /*
+     * Insert under record locking: find a page with a free slot under an IS
+     * lock, take IX on it, and fill the first free slot whose record nobody
+     * has locked (slots freed by running transactions stay locked until
+     * they end). The page is latched only while the slot is chosen and
+     * filled. New pages go through the pool like any other page, as in
+     * insertTuple.
+     */
+    private ArrayList<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; ; i++) {
+            if (i == numPages())
+                appendEmptyPage(i);
+            HeapPageId hpid = new HeapPageId(getId(), i);
+            HeapPage page = (HeapPage) bp.pinPageForRecords(tid, hpid, Permissions.READ_ONLY);
+            int free = page.getNumEmptySlots();
+            bp.unpinPage(tid, hpid);
+            if (free == 0)
+                continue;
+            page = (HeapPage) bp.pinPageForRecords(tid, hpid, Permissions.READ_WRITE);
+            synchronized (page) {
+                for (int slot = 0; slot < page.getNumSlots(); slot++) {
+                    RecordId rid = new RecordId(hpid, slot);
+                    if (page.isSlotUsed(slot) || !bp.tryLockRecord(tid, rid, Permissions.READ_WRITE))
+                        continue;
+                    page.insertTuple(t, slot);
+                    page.markDirty(true, tid);
+                    bp.recordChanged(tid, rid, null);
+                    return new ArrayList<>(Collections.singletonList(page));
+                }
+            }
+            bp.unpinPage(tid, hpid);
+        }
+    }
+
+    private synchronized void appendEmptyPage(int pageNo) throws IOException {
+        if (numPages() == pageNo)
+            writePage(new HeapPage(new HeapPageId(getId(), pageNo), HeapPage.createEmptyPageData()));
+    }
+
+    /* Delete under record locking: X on the record, IX on its page. */
+    private ArrayList<Page> deleteRecord(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId())
+            throw new DbException("HeapFile: tuple is not in this file");
+        bp.lockRecord(tid, rid, Permissions.READ_WRITE);
+        HeapPage page = (HeapPage) bp.pinPageForRecords(tid, rid.getPageId(), Permissions.READ_WRITE);
+        synchronized (page) {
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+            bp.recordChanged(tid, rid, t);
+        }
+        return new ArrayList<>(Collections.singletonList(page));
+    }
+
 
 
 
@@ -187,7 +255,12 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
+        return new HeapFileIterator(this, tid, ring);
     }
 
     private class HeapFileIterator implements DbFileIterator
@@ -197,12 +270,16 @@ public class HeapFile implements DbFile {
         private int ind;
         private Iterator<Tuple> TupleIterators;
         private HeapFile f;
+        private ReadAhead readAhead;
+        private final BufferRing ring;
+        private PageId pinned;
 
 
-        public HeapFileIterator(HeapFile f,TransactionId tid)
+        public HeapFileIterator(HeapFile f,TransactionId tid, BufferRing ring)
         {
             this.f = f;
             this.tid = tid;
+            this.ring = ring;
         }
 
         @Override
@@ -215,7 +292,7 @@ public class HeapFile implements DbFile {
                 if (ind < f.numPages() - 1)
                 {
                     ind++;
-                    TupleIterators = ((HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), ind), Permissions.READ_ONLY)).iterator();
+                    TupleIterators = fetch(ind).iterator();
                 }
 
             }
@@ -229,20 +306,48 @@ public class HeapFile implements DbFile {
         {
             ind = 0;
             TupleIterators = null;
+            if (readAhead != null)
+                readAhead.stop();
+            if (pinned != null)
+                Database.getBufferPool().unpinPage(tid, pinned);
+            pinned = null;
+        }
+
+        private HeapPage fetch(int pageNo) throws DbException, TransactionAbortedException
+        {
+            BufferPool pool = Database.getBufferPool();
+            // keep only the page being iterated pinned; the previous one is
+            // done with, and may be the frame the next page has to use
+            if (pinned != null)
+                pool.unpinPage(tid, pinned);
+            pinned = null;
+            HeapPage page = (HeapPage) pool.pinPage(tid, new HeapPageId(getId(), pageNo), Permissions.READ_ONLY, ring);
+            pinned = page.getId();
+            if (readAhead != null)
+                readAhead.accessed(page);
+            return page;
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException
         {
             this.ind = 0;
+            BufferPool pool = Database.getBufferPool();
+            readAhead = null;
+            if (pool.isReadAheadEnabled())
+            {
+                readAhead = new ReadAhead(pool, ring, page -> {
+                    int next = page.getId().pageNumber() + 1;
+                    return next < numPages() ? new HeapPageId(getId(), next) : null;
+                });
+            }
             if (numPages() == 0)
             {
                 this.TupleIterators = new ArrayList<Tuple>().iterator();
             }
             else
             {
-                HeapPageId tmp = new HeapPageId(getId(), ind);
-                TupleIterators = ((HeapPage)Database.getBufferPool().getPage(tid, tmp, Permissions.READ_ONLY)).iterator();
+                TupleIterators = fetch(ind).iterator();
             }
         }
 
@@ -256,8 +361,7 @@ public class HeapFile implements DbFile {
             while (ind < numPages() - 1)
             {
                 ind += 1;
-                HeapPageId tmp = new HeapPageId(getId(), ind);
-                TupleIterators = ((HeapPage) Database.getBufferPool().getPage(tid, tmp, Permissions.READ_ONLY)).iterator();
+                TupleIterators = fetch(ind).iterator();
                 return TupleIterators.hasNext();
 
             }
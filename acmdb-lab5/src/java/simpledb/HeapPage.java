@@ -2,25 +2,35 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage is either materialized (header and Tuple objects on the heap)
+ * or, when the BufferPool runs with an off-heap {@link PageArena}, a view
+ * that decodes tuples from its frame on demand.
+ * <p>
+ * The page object itself is the page latch: under record-level locking
+ * several transactions change slots of one page concurrently, each
+ * synchronized on the page for the duration of the change.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements FramedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    final byte header[];   // null for frame views
+    final Tuple tuples[];  // null for frame views
     final int numSlots;
+    private volatile ByteBuffer frame; // non-null for frame views
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     private TransactionId isDirty;
 
     /**
@@ -63,6 +73,53 @@ public class HeapPage implements Page {
         setBeforeImage();
     }
 
+    /**
+     * Create a HeapPage that reads and writes its data in place in a frame
+     * of the BufferPool's off-heap arena. The frame must already hold the
+     * page bytes, in the format described above. The before image is only
+     * copied out of the frame when the page is first modified.
+     *
+     * @see PageArena
+     */
+    HeapPage(HeapPageId id, ByteBuffer frame) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        this.header = null;
+        this.tuples = null;
+        this.frame = frame;
+    }
+
+    public boolean isFrameBacked() {
+        ByteBuffer f = frame;
+        return f != null && f.isDirect();
+    }
+
+    public void detachFrame() {
+        ByteBuffer f = frame;
+        if (f != null && f.isDirect())
+            frame = ByteBuffer.wrap(PageArena.read(f, 0, BufferPool.getPageSize()));
+    }
+
+    // offset of the given slot's tuple in a frame view
+    private int slotOffset(int i) {
+        return getHeaderSize() + i * td.getSize();
+    }
+
+    // frame views capture their before image lazily, right before the first
+    // write; the writer holds oldDataLock from here until it has written,
+    // so getBeforeImage never copies a half-written frame
+    private void beforeWrite() {
+        if (oldData == null)
+            oldData = frameData();
+    }
+
+    // copies a frame view's bytes without the page monitor, which must never
+    // be taken under oldDataLock: record writers take the monitor first
+    private byte[] frameData() {
+        return PageArena.read(frame, 0, BufferPool.getPageSize());
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -91,6 +148,8 @@ public class HeapPage implements Page {
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null) // frame view not modified since the last setBeforeImage
+                    oldDataRef = frameData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -102,9 +161,10 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        byte[] data = frame != null ? null : getPageData();
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = data;
         }
     }
 
@@ -157,11 +217,18 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * Synchronized on the page, which transactions that lock single
+     * records hold as a latch while they change a slot.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
+        ByteBuffer view = frame;
+        if (view != null)
+            return PageArena.read(view, 0, BufferPool.getPageSize());
+
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -247,6 +314,17 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         RecordId tmp = t.getRecordId();
+        if (tmp != null && pid.equals(tmp.getPageId()) && frame != null) {
+            int slot = tmp.tupleno();
+            if (!isSlotUsed(slot))
+                throw new DbException("deleteTuple: empty tuple slot");
+            synchronized (oldDataLock) {
+                beforeWrite();
+                markSlotUsed(slot, false);
+                PageArena.write(frame, slotOffset(slot), new byte[td.getSize()]);
+            }
+            return;
+        }
         if (tmp != null && pid.equals(tmp.getPageId())) {
             for (int i = 0; i < numSlots; i++) {
                 if (isSlotUsed(i) && t.getRecordId().equals(tuples[i].getRecordId())) {
@@ -275,15 +353,40 @@ public class HeapPage implements Page {
         } else {
             for (int i = 0; i < numSlots; i++) {
                 if (!isSlotUsed(i)) {
-                    markSlotUsed(i, true);
-                    tuples[i] = t;
-                    tuples[i].setRecordId(new RecordId(pid, i));
+                    insertTuple(t, i);
                     break;
                 }
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to the given slot of the page, e.g. to put a
+     * deleted tuple back where it was.
+     * @throws DbException if the slot does not exist or is in use.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if (slot < 0 || slot >= numSlots || isSlotUsed(slot))
+            throw new DbException("insertTuple: slot " + slot + " is not free");
+        if (frame != null) {
+            synchronized (oldDataLock) {
+                beforeWrite();
+                markSlotUsed(slot, true);
+                PageArena.writeTuple(frame, slotOffset(slot), t);
+            }
+            t.setRecordId(new RecordId(pid, slot));
+            return;
+        }
+        markSlotUsed(slot, true);
+        tuples[slot] = t;
+        tuples[slot].setRecordId(new RecordId(pid, slot));
+    }
+
+    /** @return the number of tuple slots on this page */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -324,7 +427,9 @@ public class HeapPage implements Page {
     public boolean isSlotUsed(int i) {
         // some code goes here
         if (i < numSlots) {
-            return (header[i / 8] & (1 << (i % 8))) != 0;
+            ByteBuffer f = frame;
+            byte b = f != null ? f.get(i / 8) : header[i / 8];
+            return (b & (1 << (i % 8))) != 0;
         }
         return false;
     }
@@ -337,6 +442,12 @@ public class HeapPage implements Page {
         // not necessary for lab1
         if (i < numSlots) {
             byte tmp = (byte) (0x1 << (i % 8));
+            ByteBuffer f = frame;
+            if (f != null) {
+                byte b = f.get(i / 8);
+                f.put(i / 8, (byte) (value ? b | tmp : b & ~tmp));
+                return;
+            }
             if (value) {
                 header[i / 8] |= tmp;
             }else {
@@ -351,10 +462,12 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        // frame views decode eagerly so the iterator survives eviction of the frame
         ArrayList<Tuple> tmp = new ArrayList<>();
+        ByteBuffer f = frame;
         for (int i = 0; i < numSlots; i++) {
             if (isSlotUsed(i)) {
-                tmp.add(tuples[i]);
+                tmp.add(f != null ? PageArena.readTuple(f, slotOffset(i), td, new RecordId(pid, i)) : tuples[i]);
             }
         }
         return tmp.iterator();
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * LRU-K page replacement (O'Neil, O'Neil and Weikum).
+ * <p>
+ * For every resident page the policy remembers the logical times of its last
+ * K references. The victim is the page whose K-th most recent reference is
+ * oldest. Pages referenced fewer than K times have an infinite backward
+ * K-distance and are evicted first (least recently used among them), which
+ * keeps one-off sequential scans from pushing out pages that are used
+ * repeatedly.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    /** K used by the no-argument constructor */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final HashMap<PageId, long[]> history = new HashMap<PageId, long[]>();
+    private long clock = 0;
+
+    public LRUKPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past references to remember per page; must be >= 1
+     */
+    public LRUKPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("LRU-K needs k >= 1");
+        this.k = k;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (!history.containsKey(pid))
+            history.put(pid, new long[k]);
+        touch(history.get(pid));
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        long[] h = history.get(pid);
+        if (h != null)
+            touch(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        history.remove(pid);
+    }
+
+    // h[0] is the most recent reference, h[k-1] the K-th most recent; 0 means none
+    private void touch(long[] h) {
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = ++clock;
+    }
+
+    public synchronized PageId chooseVictim(VictimFilter filter) {
+        PageId victim = null;
+        boolean victimInfinite = false;
+        long victimKey = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : history.entrySet()) {
+            long[] h = e.getValue();
+            boolean infinite = h[k - 1] == 0;
+            // infinite distance beats finite; ties broken by the older reference
+            long key = infinite ? h[0] : h[k - 1];
+            if (victim != null) {
+                if (victimInfinite && !infinite)
+                    continue;
+                if (victimInfinite == infinite && key >= victimKey)
+                    continue;
+            }
+            if (!filter.canEvict(e.getKey()))
+                continue;
+            victim = e.getKey();
+            victimInfinite = infinite;
+            victimKey = key;
+        }
+        return victim;
+    }
+
+    public String getName() {
+        return "LRU-" + k;
+    }
+}
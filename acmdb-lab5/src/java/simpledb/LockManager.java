@@ -1,143 +1,857 @@
 package simpledb;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager keeps the table, page and record locks of all running
+ * transactions.
+ * <p>
+ * Locking is multi-granular. Before it locks a page, a transaction takes an
+ * intention lock on the page's table (keyed by {@link DbFile#getId()}): IS
+ * for a shared page lock, IX for an exclusive one. A transaction may also
+ * lock a whole table shared or exclusive, e.g. for a full scan, and then
+ * needs no page locks on that table at all. Table modes conflict as usual:
+ * <pre>
+ *        IS  IX  S   X
+ *    IS  ok  ok  ok  -
+ *    IX  ok  ok  -   -
+ *    S   ok  -   ok  -
+ *    X   -   -   -   -
+ * </pre>
+ * A transaction holding S and IX on a table (e.g. a scan that then updates
+ * a few pages) conflicts with whatever conflicts with either.
+ * <p>
+ * Pages are usually locked S or X. Transactions that lock individual
+ * records (keyed by {@link RecordId}) instead take IS or IX on the record's
+ * page first, the same way page locks take intention locks on their table,
+ * so several transactions can change different records of one page while
+ * page readers and writers still conflict with all of them.
+ * <p>
+ * Page and record locks are escalated: once a transaction holds
+ * {@link #getEscalationThreshold()} of them on one table, the manager
+ * tries to trade them for a single table lock, S if the transaction only
+ * reads the table and X if it writes it. Escalation never waits; if
+ * another transaction holds a conflicting table lock, the page locks are
+ * kept and escalation is tried again on the next page lock.
+ * <p>
+ * Each locked page has a small {@link PageLock}: its writer, an array of
+ * its readers and its wait queue. Each transaction has the list of locks it
+ * holds, so releasing all locks of a transaction costs time in the number
+ * of locks it holds rather than in the size of the lock table, and granting
+ * a lock on a page that already has a PageLock allocates nothing.
+ * <p>
+ * A transaction that cannot get a lock right away joins a FIFO queue of
+ * waiters for that page or table and parks on its own condition. Whenever
+ * locks are released, the manager grants them to the queue from the
+ * front, as far as they are compatible, and signals exactly the waiters it
+ * granted. A waiter that is not granted within the lock timeout gives up
+ * and its transaction is aborted.
+ * <p>
+ * New requests queue behind earlier waiters even if they would be
+ * compatible with the current holders, so writers are not starved by a
+ * stream of readers. Upgrades of a lock the transaction already holds go
+ * to the front of the queue.
+ * <p>
+ * Deadlocks are detected on a wait-for graph: a waiting transaction waits
+ * for every other transaction that holds a conflicting lock on its page or
+ * table, or is queued ahead of it with a conflicting request. Every time a
+ * transaction blocks, the manager looks for a cycle through it; since
+ * blocking is the only way an edge is added, this finds every deadlock as
+ * soon as it forms. The youngest transaction of the cycle (the one with the
+ * largest id, which has done the least work) is aborted. The lock timeout
+ * stays as a last resort.
+ */
 public class LockManager {
-    private ConcurrentHashMap<PageId, CopyOnWriteArrayList<TransactionId>> sharedLocks;
-    private ConcurrentHashMap<PageId, CopyOnWriteArrayList<TransactionId>> exclusiveLocks;
-    private int num = 0;
-    public LockManager() {
-        sharedLocks = new ConcurrentHashMap<>();
-        exclusiveLocks = new ConcurrentHashMap<>();
-    }
-
-    private synchronized void addLock(PageId pid, TransactionId tid, Permissions perm) {
-        ++num;
-        if (perm == Permissions.READ_ONLY) {
-            if (sharedLocks.containsKey(pid)) {
-                sharedLocks.get(pid).add(tid);
-            } else {
-                CopyOnWriteArrayList<TransactionId> ts = new CopyOnWriteArrayList<>();
-                ts.add(tid);
-                sharedLocks.put(pid, ts);
-            }
-        } else {
-            if (exclusiveLocks.containsKey(pid)) {
-                exclusiveLocks.get(pid).add(tid);
-            } else {
-                CopyOnWriteArrayList<TransactionId> ts = new CopyOnWriteArrayList<>();
-                ts.add(tid);
-                exclusiveLocks.put(pid, ts);
-            }
+    /** Default time a transaction waits for a lock before it is aborted */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2500;
+    /** Default number of page and record locks on one table that triggers escalation */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    // lock modes, as bits so that a holder can keep several of them
+    static final int IS = 1, IX = 2, S = 4, X = 8;
+
+    // all guarded by latch
+    private final ReentrantLock latch = new ReentrantLock();
+    private final HashMap<PageId, PageLock> pageLocks = new HashMap<>();
+    private final HashMap<RecordId, RecordLock> recordLocks = new HashMap<>();
+    private final HashMap<Integer, TableLock> tableLocks = new HashMap<>();
+    // the locks each transaction holds
+    private final HashMap<TransactionId, ArrayList<LockState>> held = new HashMap<>();
+    // the waiting requests of each transaction, i.e. the wait-for graph
+    private final HashMap<TransactionId, ArrayList<Waiter>> waiting = new HashMap<>();
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder detections = new LongAdder();
+    private final LongAdder detectionNanos = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+
+    /** @return whether a lock in mode a and one in mode b can be held by two transactions */
+    static boolean compatible(int a, int b) {
+        if ((a | b) == 0)
+            return true;
+        if (((a | b) & X) != 0)
+            return false;
+        if (((a & S) != 0 && (b & IX) != 0) || ((a & IX) != 0 && (b & S) != 0))
+            return false;
+        return true;
+    }
+
+    /** @return whether holding the modes in held makes a request for mode redundant */
+    static boolean covers(int held, int mode) {
+        if ((held & X) != 0)
+            return true;
+        switch (mode) {
+            case IS: return held != 0;
+            case IX: return (held & IX) != 0;
+            case S: return (held & S) != 0;
+            default: return false;
+        }
+    }
+
+    /** Holders and waiters of the locks on one page or table. */
+    private abstract static class LockState {
+        ArrayDeque<Waiter> queue; // null while nobody waits
+
+        /** @return the modes tid holds here */
+        abstract int modes(TransactionId tid);
+
+        /** Add mode to the modes tid holds. */
+        abstract void add(TransactionId tid, int mode);
+
+        /** Drop every mode tid holds. */
+        abstract void remove(TransactionId tid);
+
+        /** Add the other transactions whose modes conflict with mode to out. */
+        abstract void conflicting(TransactionId tid, int mode, Collection<TransactionId> out);
+
+        /** @return whether no transaction holds anything here */
+        abstract boolean isUnlocked();
+
+        /** Remove this state from the lock table. */
+        abstract void drop();
+
+        boolean holds(TransactionId tid, int mode) {
+            return covers(modes(tid), mode);
         }
+
+        /**
+         * @return whether no other transaction holds a conflicting mode; the
+         * same as conflicting finding none, but without allocating, as
+         * grants are the hot path
+         */
+        abstract boolean grantable(TransactionId tid, int mode);
     }
-    public synchronized boolean isYield(PageId pid, TransactionId tid, Permissions perm) {
-        if (num < 100)
+
+    /**
+     * Page locks: a writer, an array of readers and, only while records of
+     * the page are locked, the intention modes of the record lockers.
+     */
+    private class PageLock extends LockState {
+        final PageId pid;
+        TransactionId writer;
+        TransactionId[] readers = new TransactionId[4];
+        int numReaders;
+        HashMap<TransactionId, Integer> intents; // null while there are none
+
+        PageLock(PageId pid) {
+            this.pid = pid;
+        }
+
+        boolean isReader(TransactionId tid) {
+            for (int i = 0; i < numReaders; i++) {
+                if (readers[i].equals(tid))
+                    return true;
+            }
             return false;
-        if (perm == Permissions.READ_ONLY) {
-            if (exclusiveLocks.containsKey(pid)) {
-                for (TransactionId t : exclusiveLocks.get(pid)) {
-                    if (!t.equals(tid)) {
-                        if (t.hashCode() < tid.hashCode()) {
-                            return true;
-                        }
-                    }
+        }
+
+        void removeReader(TransactionId tid) {
+            for (int i = 0; i < numReaders; i++) {
+                if (readers[i].equals(tid)) {
+                    readers[i] = readers[--numReaders];
+                    readers[numReaders] = null;
+                    return;
                 }
             }
-        } else {
-            if (exclusiveLocks.containsKey(pid)) {
-                for (TransactionId t : exclusiveLocks.get(pid)) {
-                    if (!t.equals(tid)) {
-                        if (t.hashCode() < tid.hashCode()) {
-                            return true;
-                        }
-                    }
+        }
+
+        int modes(TransactionId tid) {
+            if (writer != null && writer.equals(tid))
+                return X;
+            Integer intent = intents == null ? null : intents.get(tid);
+            return (isReader(tid) ? S : 0) | (intent == null ? 0 : intent);
+        }
+
+        void add(TransactionId tid, int mode) {
+            if (mode == X) {
+                // an upgrade replaces the weaker locks
+                removeReader(tid);
+                removeIntent(tid);
+                writer = tid;
+            } else if (mode == S) {
+                if (numReaders == readers.length)
+                    readers = Arrays.copyOf(readers, 2 * numReaders);
+                readers[numReaders++] = tid;
+            } else {
+                if (intents == null)
+                    intents = new HashMap<>(4);
+                intents.merge(tid, mode, (a, b) -> a | b);
+            }
+        }
+
+        void removeIntent(TransactionId tid) {
+            if (intents != null && intents.remove(tid) != null && intents.isEmpty())
+                intents = null;
+        }
+
+        void remove(TransactionId tid) {
+            if (writer != null && writer.equals(tid))
+                writer = null;
+            removeReader(tid);
+            removeIntent(tid);
+        }
+
+        boolean grantable(TransactionId tid, int mode) {
+            if (writer != null && !writer.equals(tid))
+                return false;
+            for (int i = 0; !compatible(S, mode) && i < numReaders; i++) {
+                if (!readers[i].equals(tid))
+                    return false;
+            }
+            if (intents != null) {
+                for (Map.Entry<TransactionId, Integer> e : intents.entrySet()) {
+                    if (!e.getKey().equals(tid) && !compatible(e.getValue(), mode))
+                        return false;
                 }
             }
-            if (sharedLocks.containsKey(pid)) {
-                for (TransactionId t : sharedLocks.get(pid)) {
-                    if (!t.equals(tid)) {
-                        if (t.hashCode() < tid.hashCode()) {
-                            return true;
-                        }
-                    }
+            return true;
+        }
+
+        void conflicting(TransactionId tid, int mode, Collection<TransactionId> out) {
+            if (writer != null && !writer.equals(tid))
+                out.add(writer);
+            for (int i = 0; !compatible(S, mode) && i < numReaders; i++) {
+                if (!readers[i].equals(tid))
+                    out.add(readers[i]);
+            }
+            if (intents != null) {
+                for (Map.Entry<TransactionId, Integer> e : intents.entrySet()) {
+                    if (!e.getKey().equals(tid) && !compatible(e.getValue(), mode))
+                        out.add(e.getKey());
                 }
             }
         }
-        return false;
+
+        boolean isUnlocked() {
+            return writer == null && numReaders == 0 && intents == null;
+        }
+
+        void drop() {
+            pageLocks.remove(pid);
+        }
+    }
+
+    /** Record locks: S and X only, like a page without record lockers. */
+    private class RecordLock extends PageLock {
+        final RecordId rid;
+
+        RecordLock(RecordId rid) {
+            super(rid.getPageId());
+            this.rid = rid;
+        }
+
+        @Override
+        void drop() {
+            recordLocks.remove(rid);
+        }
     }
-    public synchronized boolean grantLock(PageId pid, TransactionId tid, Permissions perm) {
-        int ownS = 0, ownE = 0, otherS = 0, otherE = 0;
-        if (sharedLocks.containsKey(pid)) {
-            for (TransactionId t : sharedLocks.get(pid)) {
-                if (t.equals(tid))
-                    ownS++;
-                else
-                    otherS++;
+
+    /**
+     * Table locks: the modes each holder has, and how many page and record
+     * locks it holds on the table; there are few holders.
+     */
+    private class TableLock extends LockState {
+        final int tableId;
+        final HashMap<TransactionId, Integer> holders = new HashMap<>();
+        final HashMap<TransactionId, Integer> pageCounts = new HashMap<>();
+
+        TableLock(int tableId) {
+            this.tableId = tableId;
+        }
+
+        int modes(TransactionId tid) {
+            Integer m = holders.get(tid);
+            return m == null ? 0 : m;
+        }
+
+        void add(TransactionId tid, int mode) {
+            holders.put(tid, mode == X ? X : modes(tid) | mode);
+        }
+
+        void remove(TransactionId tid) {
+            holders.remove(tid);
+            pageCounts.remove(tid);
+        }
+
+        /** @return the number of page and record locks tid holds on this table after adding delta */
+        int countPages(TransactionId tid, int delta) {
+            Integer n = pageCounts.get(tid);
+            int count = (n == null ? 0 : n) + delta;
+            if (count > 0)
+                pageCounts.put(tid, count);
+            else
+                pageCounts.remove(tid);
+            return count;
+        }
+
+        void conflicting(TransactionId tid, int mode, Collection<TransactionId> out) {
+            for (Map.Entry<TransactionId, Integer> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !compatible(e.getValue(), mode))
+                    out.add(e.getKey());
             }
         }
-        if (exclusiveLocks.containsKey(pid)) {
-            for (TransactionId t : exclusiveLocks.get(pid)) {
-                if (t.equals(tid))
-                    ownE++;
-                else
-                    otherE++;
+
+        boolean grantable(TransactionId tid, int mode) {
+            for (Map.Entry<TransactionId, Integer> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !compatible(e.getValue(), mode))
+                    return false;
             }
+            return true;
+        }
+
+        boolean isUnlocked() {
+            return holders.isEmpty();
+        }
+
+        void drop() {
+            tableLocks.remove(tableId);
+        }
+    }
+
+    /** A transaction parked until it is granted a lock on one page or table. */
+    private static class Waiter {
+        final LockState lock;
+        final TransactionId tid;
+        final int mode;
+        final Condition cond;
+        boolean granted = false;
+        boolean aborted = false;
+
+        Waiter(LockState lock, TransactionId tid, int mode, Condition cond) {
+            this.lock = lock;
+            this.tid = tid;
+            this.mode = mode;
+            this.cond = cond;
         }
-        if (perm == Permissions.READ_ONLY) {
-            if (ownS == 1 && otherE == 0) {
+    }
+
+    /** @return how long a transaction waits for a lock before it is aborted, in ms */
+    public long getTimeout() {
+        return timeoutMillis;
+    }
+
+    /** Set how long a transaction waits for a lock before it is aborted, in ms. */
+    public void setTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0)
+            throw new IllegalArgumentException("lock timeout must not be negative");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** @return number of page and record locks on one table that makes a transaction escalate */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Set the number of page and record locks a transaction may hold on one table
+     * before they are escalated to a table lock; 0 turns escalation off.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        if (escalationThreshold < 0)
+            throw new IllegalArgumentException("escalation threshold must not be negative");
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /** @return number of times page and record locks were replaced by a table lock */
+    public long getEscalationCount() {
+        return escalations.sum();
+    }
+
+    /** @return number of deadlocks found, each of which aborted one transaction */
+    public long getDeadlockCount() {
+        return deadlocks.sum();
+    }
+
+    /** @return number of cycle searches, one per blocked lock request */
+    public long getDetectionCount() {
+        return detections.sum();
+    }
+
+    /**
+     * @return total time spent searching the wait-for graph, in ns. Each
+     *   search runs when a request blocks, so this over
+     *   {@link #getDetectionCount()} is also the mean delay between a
+     *   deadlock forming and its victim being chosen.
+     */
+    public long getDetectionNanos() {
+        return detectionNanos.sum();
+    }
+
+    private PageLock pageLock(PageId pid) {
+        PageLock lock = pageLocks.get(pid);
+        if (lock == null) {
+            lock = new PageLock(pid);
+            pageLocks.put(pid, lock);
+        }
+        return lock;
+    }
+
+    private RecordLock recordLock(RecordId rid) {
+        RecordLock lock = recordLocks.get(rid);
+        if (lock == null) {
+            lock = new RecordLock(rid);
+            recordLocks.put(rid, lock);
+        }
+        return lock;
+    }
+
+    private TableLock tableLock(int tableId) {
+        TableLock lock = tableLocks.get(tableId);
+        if (lock == null) {
+            lock = new TableLock(tableId);
+            tableLocks.put(tableId, lock);
+        }
+        return lock;
+    }
+
+    private static int pageMode(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? S : X;
+    }
+
+    private static int intention(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? IS : IX;
+    }
+
+    private void addLock(LockState lock, TransactionId tid, int mode) {
+        if (lock.modes(tid) == 0) {
+            held.computeIfAbsent(tid, k -> new ArrayList<>()).add(lock);
+            if (lock instanceof PageLock)
+                tableLocks.get(((PageLock) lock).pid.getTableId()).countPages(tid, 1);
+        }
+        lock.add(tid, mode);
+    }
+
+    /** Forget lock if nobody holds or waits for it. */
+    private static void dropIfUnused(LockState lock) {
+        if (lock.queue == null && lock.isUnlocked())
+            lock.drop();
+    }
+
+    /**
+     * @return true if tid holds a lock on pid, either on the page itself or
+     *   on its whole table
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            TableLock table = tableLocks.get(pid.getTableId());
+            if (table != null && (table.modes(tid) & (S | X)) != 0)
                 return true;
-            } else
-            if (ownS == 0 && otherE == 0) {
-                addLock(pid, tid, perm);
+            PageLock lock = pageLocks.get(pid);
+            return lock != null && (lock.modes(tid) & (S | X)) != 0;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return true if tid holds a lock on rid, either on the record itself
+     *   or on its whole page or table
+     */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        latch.lock();
+        try {
+            RecordLock lock = recordLocks.get(rid);
+            if (lock != null && lock.modes(tid) != 0)
+                return true;
+        } finally {
+            latch.unlock();
+        }
+        return holdsLock(tid, rid.getPageId());
+    }
+
+    /*
+     * Grant the lock if that is possible without waiting. Transactions that
+     * hold nothing here yet must also not overtake queued waiters.
+     */
+    private boolean tryGrant(LockState lock, TransactionId tid, int mode) {
+        if (lock.holds(tid, mode))
+            return true;
+        if (!lock.grantable(tid, mode))
+            return false;
+        if (lock.queue != null && lock.modes(tid) == 0)
+            return false;
+        addLock(lock, tid, mode);
+        return true;
+    }
+
+    /**
+     * Take the lock if it can be granted right away.
+     *
+     * @return true if tid now holds perm on pid, false if it would have to wait
+     */
+    public boolean grantLock(PageId pid, TransactionId tid, Permissions perm) {
+        latch.lock();
+        try {
+            TableLock table = tableLock(pid.getTableId());
+            if (table.holds(tid, pageMode(perm)))
                 return true;
-            } else
-            if (otherE == 1) {
+            boolean granted = tryGrant(table, tid, intention(perm));
+            dropIfUnused(table);
+            if (!granted)
                 return false;
-            }
-        } else {
-            if (ownE == 1) {
+            PageLock lock = pageLock(pid);
+            granted = tryGrant(lock, tid, pageMode(perm));
+            dropIfUnused(lock);
+            return granted;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock a page, waiting in the queues of its table and of the page until
+     * the locks are granted. Nothing is locked on the page itself if the
+     * transaction already has a matching lock on the whole table.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   the victim of a deadlock, a lock was not granted within the lock
+     *   timeout, or the wait was interrupted
+     */
+    public void acquireLock(PageId pid, TransactionId tid, Permissions perm)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            TableLock table = tableLock(pid.getTableId());
+            if (table.holds(tid, pageMode(perm)))
+                return;
+            acquire(table, tid, intention(perm));
+            acquire(pageLock(pid), tid, pageMode(perm));
+            maybeEscalate(table, tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Take intention locks on a page and its table, waiting as needed: IS
+     * for READ_ONLY and IX for READ_WRITE. The transaction may then lock
+     * records of the page with {@link #grantRecordLock}, which never waits
+     * for the page.
+     *
+     * @throws TransactionAbortedException as {@link #acquireLock}
+     */
+    public void acquireIntentionLock(PageId pid, TransactionId tid, Permissions perm)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            TableLock table = tableLock(pid.getTableId());
+            if (table.holds(tid, pageMode(perm)))
+                return;
+            acquire(table, tid, intention(perm));
+            acquire(pageLock(pid), tid, intention(perm));
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock a single record, shared for READ_ONLY and exclusive for
+     * READ_WRITE, after intention locks on its page and table. Nothing is
+     * locked on the record itself if the transaction already has a
+     * matching lock on the whole page or table.
+     *
+     * @throws TransactionAbortedException as {@link #acquireLock}
+     */
+    public void acquireRecordLock(RecordId rid, TransactionId tid, Permissions perm)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            TableLock table = tableLock(rid.getPageId().getTableId());
+            if (table.holds(tid, pageMode(perm)))
+                return;
+            acquire(table, tid, intention(perm));
+            PageLock page = pageLock(rid.getPageId());
+            if (page.holds(tid, pageMode(perm)))
+                return;
+            acquire(page, tid, intention(perm));
+            acquire(recordLock(rid), tid, pageMode(perm));
+            maybeEscalate(table, tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Take a record lock as {@link #acquireRecordLock} if it can be granted
+     * right away, e.g. while the caller holds a latch on the page.
+     *
+     * @return true if tid now holds perm on rid, false if it would have to wait
+     */
+    public boolean grantRecordLock(RecordId rid, TransactionId tid, Permissions perm) {
+        latch.lock();
+        try {
+            TableLock table = tableLock(rid.getPageId().getTableId());
+            if (table.holds(tid, pageMode(perm)))
                 return true;
-            } else
-            if (ownE == 0 && otherE == 0 && otherS == 0) {
-                addLock(pid,tid,perm);
+            boolean granted = tryGrant(table, tid, intention(perm));
+            dropIfUnused(table);
+            if (!granted)
+                return false;
+            PageLock page = pageLock(rid.getPageId());
+            if (page.holds(tid, pageMode(perm)))
                 return true;
-            } else
-            if (otherE == 1 || otherS >= 1) {
+            granted = tryGrant(page, tid, intention(perm));
+            dropIfUnused(page);
+            if (!granted)
+                return false;
+            RecordLock lock = recordLock(rid);
+            granted = tryGrant(lock, tid, pageMode(perm));
+            dropIfUnused(lock);
+            if (granted)
+                maybeEscalate(table, tid);
+            return granted;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock a whole table, shared for READ_ONLY and exclusive for READ_WRITE.
+     * Pages of the table are then accessed without page locks.
+     *
+     * @param tableId the id of the table's DbFile
+     * @throws TransactionAbortedException as {@link #acquireLock}
+     */
+    public void acquireTableLock(int tableId, TransactionId tid, Permissions perm)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            acquire(tableLock(tableId), tid, pageMode(perm));
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void maybeEscalate(TableLock table, TransactionId tid) {
+        int threshold = escalationThreshold;
+        if (threshold > 0 && table.countPages(tid, 0) >= threshold)
+            escalate(table, tid);
+    }
+
+    /*
+     * Replace tid's page and record locks on the table by a table lock, if
+     * that can be granted without waiting.
+     */
+    private void escalate(TableLock table, TransactionId tid) {
+        int mode = (table.modes(tid) & IX) != 0 ? X : S;
+        if (!tryGrant(table, tid, mode))
+            return;
+        escalations.increment();
+        ArrayList<PageLock> dropped = new ArrayList<>();
+        held.get(tid).removeIf(lock -> {
+            if (!(lock instanceof PageLock) || ((PageLock) lock).pid.getTableId() != table.tableId)
                 return false;
+            dropped.add((PageLock) lock);
+            return true;
+        });
+        table.countPages(tid, -table.countPages(tid, 0));
+        for (PageLock lock : dropped) {
+            lock.remove(tid);
+            grantWaiters(lock);
+        }
+    }
+
+    /* Must hold the latch. */
+    private void acquire(LockState lock, TransactionId tid, int mode)
+            throws TransactionAbortedException {
+        if (tryGrant(lock, tid, mode))
+            return;
+
+        Waiter w = new Waiter(lock, tid, mode, latch.newCondition());
+        if (lock.queue == null)
+            lock.queue = new ArrayDeque<>();
+        if (lock.modes(tid) != 0)
+            lock.queue.addFirst(w);
+        else
+            lock.queue.addLast(w);
+        waiting.computeIfAbsent(tid, k -> new ArrayList<>()).add(w);
+        try {
+            await(w);
+        } finally {
+            ArrayList<Waiter> mine = waiting.get(tid);
+            mine.remove(w);
+            if (mine.isEmpty())
+                waiting.remove(tid);
+        }
+    }
+
+    /* Park until w is granted; on failure, leave the queue and abort. */
+    private void await(Waiter w) throws TransactionAbortedException {
+        resolveDeadlock(w.tid);
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean interrupted = false;
+        while (!w.granted && !w.aborted && nanos > 0) {
+            try {
+                nanos = w.cond.awaitNanos(nanos);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
             }
         }
-        return false;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (w.granted)
+            return;
+        dequeue(w);
+        throw new TransactionAbortedException();
     }
 
-    public synchronized void releaseLock(PageId pid, TransactionId tid) {
-        if (sharedLocks.containsKey(pid)) {
-            sharedLocks.get(pid).remove(tid);
-            if (sharedLocks.get(pid).isEmpty())
-                sharedLocks.remove(pid);
+    /* Take w out of its queue and let the waiters behind it move up. */
+    private void dequeue(Waiter w) {
+        LockState lock = w.lock;
+        if (lock.queue == null || !lock.queue.remove(w))
+            return;
+        grantWaiters(lock);
+    }
+
+    /** The transactions tid waits for, i.e. its edges in the wait-for graph. */
+    private HashSet<TransactionId> waitsFor(TransactionId tid) {
+        HashSet<TransactionId> out = new HashSet<>();
+        for (Waiter w : waiting.getOrDefault(tid, new ArrayList<>())) {
+            if (w.granted || w.aborted)
+                continue; // decided, its thread just has not woken up yet
+            w.lock.conflicting(tid, w.mode, out);
+            for (Waiter ahead : w.lock.queue) {
+                if (ahead == w)
+                    break;
+                if (!compatible(ahead.mode, w.mode))
+                    out.add(ahead.tid);
+            }
         }
-        if (exclusiveLocks.containsKey(pid)) {
-            exclusiveLocks.get(pid).remove(tid);
-            if (exclusiveLocks.get(pid).isEmpty())
-                exclusiveLocks.remove(pid);
+        out.remove(tid);
+        return out;
+    }
+
+    /** @return the transactions of a cycle through start, or null if there is none */
+    private List<TransactionId> findCycle(TransactionId start) {
+        ArrayList<TransactionId> path = new ArrayList<>();
+        return findCycle(start, start, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId tid, TransactionId start,
+                              ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+        path.add(tid);
+        for (TransactionId next : waitsFor(tid)) {
+            if (next.equals(start))
+                return true;
+            if (visited.add(next) && findCycle(next, start, path, visited))
+                return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /*
+     * tid has just blocked: if that closed a cycle, abort the youngest
+     * transaction on it by failing all of its waiting requests.
+     */
+    private void resolveDeadlock(TransactionId tid) {
+        long start = System.nanoTime();
+        List<TransactionId> cycle = findCycle(tid);
+        detections.increment();
+        detectionNanos.add(System.nanoTime() - start);
+        if (cycle == null)
+            return;
+        deadlocks.increment();
+        TransactionId victim = Collections.max(cycle, (a, b) -> Long.compare(a.getId(), b.getId()));
+        for (Waiter v : waiting.get(victim)) {
+            v.aborted = true;
+            v.cond.signal();
+            dequeue(v);
         }
     }
 
-    public synchronized void releaseTransaction(TransactionId tid) {
-        for (Map.Entry<PageId,CopyOnWriteArrayList<TransactionId>> e : sharedLocks.entrySet()) {
-            if (e.getValue().contains(tid)) {
-                releaseLock(e.getKey(),tid);
+    /**
+     * Grant locks to the front of the queue, as far as they are compatible,
+     * and drop the state once it is unused.
+     */
+    private void grantWaiters(LockState lock) {
+        ArrayDeque<Waiter> queue = lock.queue;
+        while (queue != null && !queue.isEmpty()) {
+            Waiter w = queue.peekFirst();
+            if (!lock.holds(w.tid, w.mode)) {
+                if (!lock.grantable(w.tid, w.mode))
+                    break;
+                addLock(lock, w.tid, w.mode);
             }
+            queue.pollFirst();
+            w.granted = true;
+            w.cond.signal();
         }
-        for (Map.Entry<PageId,CopyOnWriteArrayList<TransactionId>> e : exclusiveLocks.entrySet()) {
-            if (e.getValue().contains(tid)) {
-                releaseLock(e.getKey(),tid);
+        if (queue != null && queue.isEmpty())
+            lock.queue = null;
+        dropIfUnused(lock);
+    }
+
+    /**
+     * Release the lock tid holds on pid itself. Table locks are kept until
+     * the transaction ends.
+     */
+    public void releaseLock(PageId pid, TransactionId tid) {
+        latch.lock();
+        try {
+            PageLock lock = pageLocks.get(pid);
+            if (lock == null || lock.modes(tid) == 0)
+                return;
+            lock.remove(tid);
+            tableLocks.get(pid.getTableId()).countPages(tid, -1);
+            ArrayList<LockState> mine = held.get(tid);
+            mine.remove(lock);
+            if (mine.isEmpty())
+                held.remove(tid);
+            grantWaiters(lock);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    public void releaseTransaction(TransactionId tid) {
+        latch.lock();
+        try {
+            ArrayList<LockState> mine = held.remove(tid);
+            if (mine == null)
+                return;
+            for (LockState lock : mine) {
+                lock.remove(tid);
+                grantWaiters(lock);
             }
+        } finally {
+            latch.unlock();
         }
     }
-}
\ No newline at end of file
+}
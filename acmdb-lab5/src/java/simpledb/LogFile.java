@@ -3,7 +3,20 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,24 +27,24 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+The state of the log is guarded by the monitor of this object, and
+group commit by flushLock, which is taken inside it; the flusher
+forces the log without holding the monitor.  The BufferPool logs and
+forces pages while it holds the latch of their shard (see
+BufferPool.logSteals), so locks are always taken in this order:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
+    shard latch  -&gt;  LogFile monitor  -&gt;  flushLock
 </pre>
+
+<p>
+A LogFile method must therefore not call into the BufferPool while it
+holds the monitor, unless the call takes no latches, as
+BufferPool.getDirtyPageTable does for checkpoints.  Rollback reads the
+log under the monitor and restores pages after releasing it; shutdown
+flushes the pool before it checkpoints.  Recovery is the exception, see
+there.
 */
 
 /**
@@ -39,42 +52,102 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
-
-<li> All additional data in the log consists of log records.  Log
+<li> The log file itself only holds a header: a long integer, the LSN
+of the last written checkpoint, or -1 if there are no checkpoints, and
+an integer, the version of the log format (LOG_FORMAT_VERSION).
+
+<li> The log records are kept in segment files next to it, named
+after the log file and the LSN of their first byte (log.00000000000000000000,
+...).  A log sequence number (LSN) is the position of a record in the
+log as a whole: the record at LSN n is at offset n - s of the segment
+that starts at s.  Records do not span segments; a new segment is
+started when a record does not fit into the current one, which is kept
+below {@link #setSegmentSize} bytes unless it holds a single larger
+record.  Truncating the log deletes whole segments, so LSNs never
+change.
+
+<li> All offsets in the log, as in checkpoints, are LSNs.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with a byte type, a long integer
+transaction id and the integer length of the record's body, followed
+by the body.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with the integer CRC-32 checksum of
+everything before it in the record, and the long integer LSN where the
+record began.
+A record that is cut short or does not match its checksum ends the
+log, as it can only have been written when the system crashed.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT, COMMIT, and BEGIN records have an empty body
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  These images are page data: the page id, a byte that
+tells how the data is stored (RAW_IMAGE or DEFLATED_IMAGE), the
+integer length of the page's data, and the data; or, when deflated,
+the integer length of the deflated data, and that.  A page id is a byte tag for
+the type of the page (HEAP_PAGE, BTREE_LEAF_PAGE, ...), followed by
+the integer table id and page number.  See LogFile.readPageData() and
+LogFile.writePageData().  A page is logged this way the first time it
+changes after a checkpoint.
+
+<li>DELTA records log any later change of a page: the page id, an
+integer count of byte ranges, and for each range its integer offset
+in the page data and integer length, followed by the bytes of the
+range before and after the change.  See LogFile.writeDelta().
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  It goes on with the dirty page table:
+an integer count of pages, and for each page its id and the long
+integer offset of the first UPDATE record of the page that may not be
+on disk yet.  It ends with the long integer offset redo has to start
+from, the smallest of those offsets and the checkpoint's own.
+Checkpoints are fuzzy: they do not flush any pages.
+
+<li> A transaction that writes an UPDATE record without having written
+a BEGIN record (e.g. a page stolen by the BufferPool on behalf of a bare
+TransactionId) starts at that UPDATE record.
 
 </ul>
 
 */
 
+/**
+<p> <u> Group commit: </u> logCommit appends the commit record and
+then waits for a single flusher thread to force the log, instead of
+forcing it itself. The flusher forces once for all commits that are
+waiting, so concurrent commits share one sync. After the first commit
+arrives it may wait up to {@link #setGroupCommitWindow} microseconds
+for more, unless {@link #setGroupCommitSize} commits are already
+waiting. With the default window of 0 it only batches commits that
+arrive while it is forcing.
+<p> <u> Appending: </u> records are assembled in an append buffer
+and written to the last segment when it fills up, when the log rolls
+over to a new segment, or when a force or a reader of the log needs
+them. Forcing takes an LSN and only writes and syncs the log up to it;
+a force that another one already covered returns at once.
+*/
+
 public class LogFile {
 
-    final File logFile;
-    private RandomAccessFile raf;
+    final File logFile; // the header; segments are named after it
+    private RandomAccessFile header;
+    private RandomAccessFile raf; // the last segment, records are appended to
+    // records not yet written to raf; they start at LSN writtenLsn
+    private final ByteBuffer appendBuffer = ByteBuffer.allocate(APPEND_BUFFER_SIZE); //protected by this
+    private long writtenLsn; //protected by this
+    // segment files by the LSN of their first byte; read by recovery
+    // workers without the monitor
+    private final ConcurrentSkipListMap<Long, File> segments = new ConcurrentSkipListMap<Long, File>();
+    private long segmentStart; //protected by this
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private volatile boolean compressImages = true;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +155,214 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** Version of the log format, written after the checkpoint pointer */
+    static final int LOG_FORMAT_VERSION = 4;
+
+    // page type tags of page ids in the log
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
+
+    // how page data stores the data of a page
+    static final byte RAW_IMAGE = 0;
+    static final byte DEFLATED_IMAGE = 1;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    // checkpoint pointer and format version
+    final static int HEADER_SIZE = LONG_SIZE + INT_SIZE;
+    // segment files are the log file's name, a dot and the padded LSN
+    private static final String SEGMENT_FORMAT = "%s.%020d";
+    // type, tid and body length; checksum and start offset
+    final static int RECORD_HEADER_SIZE = 1 + LONG_SIZE + INT_SIZE;
+    final static int RECORD_TRAILER_SIZE = INT_SIZE + LONG_SIZE;
+    private static final byte[] NO_BODY = new byte[0];
+    // records are written to the segment in chunks of up to this many bytes
+    static final int APPEND_BUFFER_SIZE = 64 << 10;
+    // changed byte ranges closer than this are logged as one range
+    private static final int DELTA_MERGE_GAP = 2 * INT_SIZE;
+
+    long currentOffset = -1;//protected by this; the LSN of the end of the log
+    long checkpointRedoLsn = 0;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // pages logged with whole images since the last checkpoint
+    private final HashSet<PageId> imagedPages = new HashSet<PageId>(); //protected by this
+
+    /** Default size of a log segment, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    /** Default number of waiting commits that makes the flusher force at once */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    // group commit, all guarded by flushLock. Progress is counted in
+    // LSNs: everything before forcedLsn is on disk.
+    private final Object flushLock = new Object();
+    private long forcedLsn = 0;
+    private long requestedLsn = 0;       // LSN some committer waits for
+    private int waitingCommits = 0;
+    private IOException flushError;      // last failed force, and what it covered
+    private long failedLsn = 0;
+    private Thread flusher;
+    private volatile long groupCommitWindowMicros = 0;
+    private volatile int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private long forces = 0;
+
+    /** Phases of {@link #recover}, in order */
+    public enum RecoveryPhase { NOT_STARTED, ANALYSIS, REDO, UNDO, DONE }
+
+    // recovery progress, read by other threads while recover() runs
+    private volatile RecoveryPhase recoveryPhase = RecoveryPhase.NOT_STARTED;
+    private final AtomicLong recoveryDone = new AtomicLong();
+    private final AtomicLong recoveryTotal = new AtomicLong();
+    private final AtomicLongArray recoveryMillis = new AtomicLongArray(RecoveryPhase.values().length);
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    /** An UPDATE or DELTA record found by analysis */
+    private static class Update {
+        final long offset;
+        final long tid;
+        final PageId pid;
+        final boolean whole;
+
+        Update(long offset, long tid, PageId pid, boolean whole) {
+            this.offset = offset;
+            this.tid = tid;
+            this.pid = pid;
+            this.whole = whole;
+        }
+    }
+
+    /** A log record read back from the file */
+    static class Record {
+        final int type;
+        final long tid;
+        final ByteBuffer body;
+
+        Record(int type, long tid, ByteBuffer body) {
+            this.type = type;
+            this.tid = tid;
+            this.body = body;
+        }
+
+        byte[] bodyBytes() {
+            byte[] bytes = new byte[body.remaining()];
+            body.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    /** Reads records through its own file handle, one segment at a
+        time; so several threads can read the log at once.
+    */
+    class LogReader implements Closeable {
+        private RandomAccessFile in;
+        private long start = -1; // LSN of the first byte of in
+        private long lsn;        // LSN of the next record
+
+        LogReader(long lsn) {
+            this.lsn = lsn;
+        }
+
+        /** @return the LSN of the next record */
+        long position() {
+            return lsn;
+        }
+
+        void seek(long lsn) {
+            this.lsn = lsn;
+        }
+
+        /** Read the next record.
+            @throws EOFException at the end of the log, see readRecord
+        */
+        Record next() throws IOException {
+            if (in == null || lsn < start || lsn >= start + in.length()) {
+                // records do not span segments
+                Map.Entry<Long, File> segment = segments.floorEntry(lsn);
+                if (segment == null)
+                    throw new EOFException();
+                if (segment.getKey() != start) {
+                    close();
+                    in = new RandomAccessFile(segment.getValue(), "r");
+                    start = segment.getKey();
+                }
+            }
+            in.seek(lsn - start);
+            Record r = readRecord(in);
+            lsn = start + in.getFilePointer();
+            return r;
+        }
+
+        /** Read the record at the given LSN */
+        Record read(long lsn) throws IOException {
+            seek(lsn);
+            return next();
+        }
+
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+            in = null;
+            start = -1;
+        }
+    }
+
+    /** Builds the body of a record in memory, to append it with one write */
+    static class RecordBody extends DataOutputStream {
+        RecordBody(int size) {
+            super(new ByteArrayOutputStream(size));
+        }
+
+        byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    /** The body of a CHECKPOINT record */
+    private static class Checkpoint {
+        // first record of every active transaction
+        final LinkedHashMap<Long, Long> active = new LinkedHashMap<Long, Long>();
+        // dirty page table: where redo of each page starts
+        final LinkedHashMap<PageId, Long> dirtyPages = new LinkedHashMap<PageId, Long>();
+        long redoOffset;
+
+        static Checkpoint read(ByteBuffer body) throws IOException {
+            Checkpoint cp = new Checkpoint();
+            int numXactions = body.getInt();
+            for (int i = 0; i < numXactions; i++)
+                cp.active.put(body.getLong(), body.getLong());
+            int numPages = body.getInt();
+            for (int i = 0; i < numPages; i++)
+                cp.dirtyPages.put(readPageId(body), body.getLong());
+            cp.redoOffset = body.getLong();
+            return cp;
+        }
+
+        byte[] encode() throws IOException {
+            RecordBody body = new RecordBody(2 * INT_SIZE + LONG_SIZE
+                    + active.size() * 2 * LONG_SIZE + dirtyPages.size() * 32);
+            body.writeInt(active.size());
+            for (Map.Entry<Long, Long> e : active.entrySet()) {
+                body.writeLong(e.getKey());
+                body.writeLong(e.getValue());
+            }
+            body.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(body, e.getKey());
+                body.writeLong(e.getValue());
+            }
+            body.writeLong(redoOffset);
+            return body.toByteArray();
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,7 +377,16 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        header = new RandomAccessFile(f, "rw");
+        File dir = f.getAbsoluteFile().getParentFile();
+        String prefix = f.getName() + ".";
+        File[] files = dir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.length() == prefix.length() + 20
+                    && name.substring(prefix.length()).matches("[0-9]+"))
+                segments.put(Long.parseLong(name.substring(prefix.length())), file);
+        }
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,63 +407,362 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startOver();
+        }
+    }
+
+    /* Throw away the log and start an empty one at LSN 0 */
+    private void startOver() throws IOException {
+        writeHeader(NO_CHECKPOINT_ID);
+        if (raf != null)
+            raf.close();
+        for (File f : segments.values())
+            f.delete();
+        segments.clear();
+        openSegment(0);
+        raf.setLength(0);
+        currentOffset = 0;
+        writtenLsn = 0;
+    }
+
+    private void writeHeader(long checkpoint) throws IOException {
+        header.seek(0);
+        header.write(ByteBuffer.allocate(HEADER_SIZE).putLong(checkpoint).putInt(LOG_FORMAT_VERSION).array());
+        header.getChannel().force(true);
+    }
+
+    /* Append to the segment starting at start, creating it if needed */
+    private void openSegment(long start) throws IOException {
+        File f = new File(String.format(SEGMENT_FORMAT, logFile.getPath(), start));
+        raf = new RandomAccessFile(f, "rw");
+        raf.seek(raf.length());
+        segments.put(start, f);
+        segmentStart = start;
+        appendBuffer.clear();
+    }
+
+    /* Continue the log in a new segment at currentOffset. Commits only
+       wait for the flusher to force the last segment, so this one is
+       forced first. */
+    private void startSegment() throws IOException {
+        writeOut(currentOffset);
+        raf.getChannel().force(true);
+        synchronized (flushLock) {
+            forces++;
+        }
+        forced(currentOffset);
+        raf.close();
+        openSegment(currentOffset);
+    }
+
+    /** @return the number of segment files the log takes */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** @return the segment files of the log, oldest first */
+    List<File> segmentFiles() {
+        return new ArrayList<File>(segments.values());
+    }
+
+    /** @return the size beyond which the log goes on in a new segment, in bytes */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Set the size beyond which the log goes on in a new segment. The
+        log is truncated one segment at a time, so smaller segments
+        give back space sooner, at the cost of more files.
+    */
+    public void setSegmentSize(long bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("segment size must be positive");
+        segmentSize = bytes;
+    }
+
+    /** @return whether whole page images are deflated in the log */
+    public boolean getCompressImages() {
+        return compressImages;
+    }
+
+    /** Set whether whole page images are deflated in the log. Pages
+        that are mostly empty slots and padding shrink to a fraction of
+        their size, at the cost of deflating them as they are logged.
+        Images that do not get smaller are logged as they are either
+        way, and recovery reads both.
+    */
+    public void setCompressImages(boolean compress) {
+        compressImages = compress;
+    }
+
+    /* Append a record at the end of the log, to the append buffer
+       unless it is larger. The caller holds the monitor and has called
+       preAppend. */
+    private void appendRecord(int type, long tid, byte[] body) throws IOException {
+        byte[] record = encodeRecord(type, tid, body, currentOffset);
+        if (currentOffset > segmentStart && currentOffset - segmentStart + record.length > segmentSize)
+            startSegment();
+        if (record.length > appendBuffer.remaining())
+            writeOut(currentOffset);
+        if (record.length > appendBuffer.remaining()) {
+            raf.write(record);
+            writtenLsn += record.length;
+        } else {
+            appendBuffer.put(record);
         }
+        currentOffset += record.length;
+    }
+
+    /* Write the buffered log up to lsn, at least, to the last segment.
+       What follows lsn stays in the buffer. */
+    private void writeOut(long lsn) throws IOException {
+        if (lsn <= writtenLsn)
+            return;
+        int length = (int) Math.min(lsn - writtenLsn, appendBuffer.position());
+        raf.write(appendBuffer.array(), 0, length);
+        appendBuffer.flip();
+        appendBuffer.position(length);
+        appendBuffer.compact();
+        writtenLsn += length;
+    }
+
+    /** @return a record as it is stored in the log at offset start */
+    static byte[] encodeRecord(int type, long tid, byte[] body, long start) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length + RECORD_TRAILER_SIZE);
+        record.put((byte) type).putLong(tid).putInt(body.length).put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue()).putLong(start);
+        return record.array();
+    }
+
+    /** Read the record at the file pointer, and move past it.
+
+        @throws EOFException at the end of the log, which is also where a
+        record that is cut short or does not match its checksum ends it
+    */
+    static Record readRecord(RandomAccessFile in) throws IOException {
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer h = ByteBuffer.wrap(header);
+        int type = h.get();
+        long tid = h.getLong();
+        int length = h.getInt();
+        if (length < 0 || length + RECORD_TRAILER_SIZE > in.length() - in.getFilePointer())
+            throw new EOFException();
+        byte[] rest = new byte[length + RECORD_TRAILER_SIZE];
+        in.readFully(rest);
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, header.length);
+        crc.update(rest, 0, length);
+        if (ByteBuffer.wrap(rest).getInt(length) != (int) crc.getValue())
+            throw new EOFException();
+        return new Record(type, tid, ByteBuffer.wrap(rest, 0, length).slice());
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return how long the flusher waits for more commits, in microseconds */
+    public long getGroupCommitWindow() {
+        return groupCommitWindowMicros;
+    }
+
+    /** Set how long the flusher waits for more commits after the first
+        one before it forces the log, in microseconds; 0 forces at once.
+    */
+    public void setGroupCommitWindow(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("group commit window must not be negative");
+        groupCommitWindowMicros = micros;
+    }
+
+    /** @return number of waiting commits that makes the flusher force at once */
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /** Set how many waiting commits make the flusher force the log
+        without waiting for the rest of the window.
+    */
+    public void setGroupCommitSize(int commits) {
+        if (commits < 1)
+            throw new IllegalArgumentException("group commit size must be at least 1");
+        groupCommitSize = commits;
+    }
+
+    /** @return number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (flushLock) {
+            return forces;
+        }
+    }
+
+    /** @return the log sequence number (LSN) of the end of the log */
+    public synchronized long currentLsn() {
+        // the first append starts the log over
+        return recoveryUndecided ? 0 : currentOffset;
+    }
+
+    /** @return how many bytes of log recovery would have to read, at
+        most, to redo committed changes if the system crashed now
+    */
+    public synchronized long getRedoWindow() {
+        Long first = recoveryUndecided ? null : segments.firstKey();
+        return currentLsn() - Math.max(checkpointRedoLsn, first == null ? 0 : first);
+    }
+
+    /** @return true if tid has written log records, but no commit or
+        abort record yet
+    */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
+        // must do this first, since rollback only works for live
+        // transactions (needs tidToFirstLogRecord); rollback restores
+        // pages without holding the log, see there
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+
+            appendRecord(ABORT_RECORD, tid.getId(), NO_BODY);
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+    }
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+    /** Write a commit record to disk for the specified tid,
+        and wait until the flusher has forced the log to disk.
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+        @param tid The committing transaction.
+    */
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            appendRecord(COMMIT_RECORD, tid.getId(), NO_BODY);
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = currentOffset;
+        }
+        awaitForced(lsn);
+    }
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
+    /* Wait until the log before lsn is on disk. */
+    private void awaitForced(long lsn) throws IOException {
+        boolean interrupted = false;
+        synchronized (flushLock) {
+            if (forcedLsn >= lsn)
+                return;
+            requestedLsn = Math.max(requestedLsn, lsn);
+            waitingCommits++;
+            if (flusher == null) {
+                flusher = new Thread(this::runFlusher, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushLock.notifyAll();
+            try {
+                while (forcedLsn < lsn) {
+                    if (flushError != null && failedLsn >= lsn)
+                        throw new IOException("could not force the log", flushError);
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        // the commit record is written; it has to be forced
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                waitingCommits--;
+                if (interrupted)
+                    Thread.currentThread().interrupt();
             }
         }
     }
 
-    /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+    private void runFlusher() {
+        while (true) {
+            synchronized (flushLock) {
+                long idleSince = System.currentTimeMillis();
+                while (requestedLsn <= forcedLsn) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (idle >= FLUSHER_IDLE_MILLIS) {
+                        flusher = null;
+                        return;
+                    }
+                    try {
+                        flushLock.wait(FLUSHER_IDLE_MILLIS - idle);
+                    } catch (InterruptedException e) {
+                        // nobody interrupts the flusher on purpose; keep going
+                    }
+                }
+                // give more commits a chance to join this force
+                long deadline = System.nanoTime() + groupCommitWindowMicros * 1000;
+                long remaining;
+                while (waitingCommits < groupCommitSize && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(flushLock, remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
 
-        @param tid The committing transaction.
-    */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+            long lsn;
+            FileChannel channel;
+            IOException error = null;
+            synchronized (this) {
+                synchronized (flushLock) {
+                    lsn = requestedLsn;
+                }
+                channel = raf.getChannel();
+                try {
+                    writeOut(lsn);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            try {
+                // without the log monitor, so that commits keep appending
+                if (error == null)
+                    channel.force(true);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (flushLock) {
+                if (error == null) {
+                    forces++;
+                    forced(lsn);
+                } else if (forcedLsn < lsn) {
+                    // unless a new segment was started and the old one forced meanwhile
+                    flushError = error;
+                    failedLsn = lsn;
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /* The log before lsn is on disk; wake its committers. */
+    private void forced(long lsn) {
+        synchronized (flushLock) {
+            if (lsn > forcedLsn) {
+                forcedLsn = lsn;
+                flushLock.notifyAll();
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,107 +771,287 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the end of the record, to force the log to
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+        /* update record body consists of
 
-           record type
-           transaction id
            before page data (see writePageData)
            after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           and a delta record body of the changed ranges (see writeDelta)
+        */
+        PageId pid = after.getId();
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        RecordBody delta = new RecordBody(256);
+        writeDelta(delta, pid, beforeData, afterData);
+        byte[] deltaBytes = delta.toByteArray();
+
+        synchronized (this) {
+            Debug.log("WRITE, offset = " + currentOffset);
+            preAppend();
+            tidToFirstLogRecord.putIfAbsent(tid.getId(), currentOffset);
+            // the first change of a page after a checkpoint is logged
+            // whole, so that redo has an image to start from rather than
+            // the page on disk
+            if (imagedPages.add(pid) || beforeData.length != afterData.length) {
+                RecordBody body = new RecordBody(2 * (afterData.length + 16));
+                writePageData(body, before, compressImages);
+                writePageData(body, after, compressImages);
+                appendRecord(UPDATE_RECORD, tid.getId(), body.toByteArray());
+            } else {
+                appendRecord(DELTA_RECORD, tid.getId(), deltaBytes);
+            }
+            Debug.log("WRITE OFFSET = " + currentOffset);
+            return currentOffset;
+        }
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Write the body of a DELTA record: the page id, and the byte
+        ranges in which after differs from before, with their bytes in
+        before and in after. Ranges that are less than DELTA_MERGE_GAP
+        bytes apart are merged, as each range costs two integers.
+    */
+    static void writeDelta(DataOutput out, PageId pid, byte[] before, byte[] after) throws IOException {
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int n = Math.min(before.length, after.length);
+        int i = 0;
+        while (true) {
+            while (i < n && before[i] == after[i])
+                i++;
+            if (i == n)
+                break;
+            int start = i, end = i + 1;
+            for (int j = end; j < n && j - end < DELTA_MERGE_GAP; j++) {
+                if (before[j] != after[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] {start, end});
+            i = end;
+        }
+        writePageId(out, pid);
+        out.writeInt(ranges.size());
+        for (int[] r : ranges) {
+            out.writeInt(r[0]);
+            out.writeInt(r[1] - r[0]);
+            out.write(before, r[0], r[1] - r[0]);
+            out.write(after, r[0], r[1] - r[0]);
+        }
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Apply the body of a DELTA record to page data: its after bytes
+        to redo the change, or its before bytes to undo it
+    */
+    static void applyDelta(ByteBuffer body, byte[] pageData, boolean redo) {
+        skipPageId(body);
+        int numRanges = body.getInt();
+        for (int i = 0; i < numRanges; i++) {
+            int offset = body.getInt();
+            int length = body.getInt();
+            // before bytes, then after bytes
+            if (redo)
+                body.position(body.position() + length);
+            body.get(pageData, offset, length);
+            if (!redo)
+                body.position(body.position() + length);
+        }
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Write page data: the id of the page (see writePageId), the
+        encoding of its data, the length of its data, and the data
+    */
+    static void writePageData(DataOutput out, Page p) throws IOException {
+        writePageData(out, p, false);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Write page data, with the data deflated if compress is set and
+        that makes it smaller
+    */
+    static void writePageData(DataOutput out, Page p, boolean compress) throws IOException {
+        writePageId(out, p.getId());
+        byte[] pageData = p.getPageData();
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(pageData);
+            deflater.finish();
+            // deflated data no smaller than the page is not worth it
+            byte[] deflated = new byte[pageData.length];
+            int length = deflater.deflate(deflated);
+            boolean smaller = deflater.finished() && length < pageData.length;
+            deflater.end();
+            if (smaller) {
+                out.writeByte(DEFLATED_IMAGE);
+                out.writeInt(pageData.length);
+                out.writeInt(length);
+                out.write(deflated, 0, length);
+                return;
+            }
+        }
+        out.writeByte(RAW_IMAGE);
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Write a page id: the tag of the page type, table id and page number */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        out.writeByte(pageTag(pid));
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.pageNumber());
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    private static byte pageTag(PageId pid) throws IOException {
+        if (pid instanceof HeapPageId)
+            return HEAP_PAGE;
+        if (pid instanceof BTreePageId) {
+            switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return BTREE_ROOT_PTR_PAGE;
+            case BTreePageId.INTERNAL:
+                return BTREE_INTERNAL_PAGE;
+            case BTreePageId.LEAF:
+                return BTREE_LEAF_PAGE;
+            case BTreePageId.HEADER:
+                return BTREE_HEADER_PAGE;
+            }
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        throw new IOException("cannot log pages with ids of " + pid.getClass().getName());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read a page id written by writePageId */
+    static PageId readPageId(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        int tableId = in.getInt();
+        int pgNo = in.getInt();
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pgNo);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+        case BTREE_LEAF_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+        case BTREE_HEADER_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+        default:
+            throw new IOException("unknown page type " + tag + " in log");
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Read page data written by writePageData */
+    static Page readPageData(ByteBuffer in) throws IOException {
+        PageId pid = readPageId(in.duplicate());
+        return newPage(pid, readPageBytes(in));
+    }
 
+    /** Read the data of the page in page data written by writePageData */
+    static byte[] readPageBytes(ByteBuffer in) throws IOException {
+        skipPageId(in);
+        byte encoding = in.get();
+        byte[] pageData = new byte[in.getInt()];
+        if (encoding == RAW_IMAGE) {
+            in.get(pageData);
+            return pageData;
+        }
+        if (encoding != DEFLATED_IMAGE)
+            throw new IOException("unknown page image encoding " + encoding + " in log");
+        int length = in.getInt();
+        Inflater inflater = new Inflater();
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+            inflater.setInput(in.array(), in.arrayOffset() + in.position(), length);
+            if (inflater.inflate(pageData) != pageData.length || !inflater.finished())
+                throw new IOException("deflated page image in log is corrupt");
+        } catch (DataFormatException e) {
+            throw new IOException("deflated page image in log is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        in.position(in.position() + length);
+        return pageData;
+    }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    /** @return the page with the given id and data */
+    static Page newPage(PageId pid, byte[] pageData) throws IOException {
+        switch (pageTag(pid)) {
+        case HEAP_PAGE:
+            return new HeapPage((HeapPageId) pid, pageData);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage((BTreePageId) pid, pageData);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreeInternalPage((BTreePageId) pid, pageData, keyField(pid));
+        case BTREE_LEAF_PAGE:
+            return new BTreeLeafPage((BTreePageId) pid, pageData, keyField(pid));
+        default:
+            return new BTreeHeaderPage((BTreePageId) pid, pageData);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Skip over page data written by writePageData */
+    static void skipPageData(ByteBuffer in) {
+        skipPageId(in);
+        byte encoding = in.get();
+        int length = in.getInt();
+        if (encoding == DEFLATED_IMAGE)
+            length = in.getInt();
+        in.position(in.position() + length);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    static void skipPageId(ByteBuffer in) {
+        in.position(in.position() + 1 + 2 * INT_SIZE);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    private static byte[] readFromDisk(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /* The page after the given committed UPDATE and DELTA records of it,
+       oldest first: the changes of the deltas on top of the last whole
+       after image, or else of the page on disk. Redo starts at the
+       first change that may not be on disk, so what the records do not
+       change is up to date on disk. */
+    private static Page redoPage(PageId pid, List<Record> records) throws IOException {
+        byte[] pageData = null;
+        for (Record r : records) {
+            ByteBuffer body = r.body.duplicate();
+            if (r.type == UPDATE_RECORD) {
+                skipPageData(body);
+                pageData = readPageBytes(body);
+            } else {
+                if (pageData == null)
+                    pageData = readFromDisk(pid);
+                applyDelta(body, pageData, true);
+            }
         }
-        return newPage;
+        return newPage(pid, pageData);
+    }
 
+    /* The page before the given UPDATE and DELTA records of one
+       transaction, oldest first: their before images, newest first,
+       over the page on disk. The transaction held the page's write lock
+       from its first record on, and wrote the page whenever it logged
+       it, so what the records do not change is the committed state on
+       disk. */
+    private static Page undoPage(PageId pid, List<Record> records) throws IOException {
+        byte[] pageData = null;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            Record r = records.get(i);
+            ByteBuffer body = r.body.duplicate();
+            if (r.type == UPDATE_RECORD) {
+                pageData = readPageBytes(body);
+            } else {
+                if (pageData == null)
+                    pageData = readFromDisk(pid);
+                applyDelta(body, pageData, false);
+            }
+        }
+        return newPage(pid, pageData);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +1066,95 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendRecord(BEGIN_RECORD, tid.getId(), NO_BODY);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: instead of flushing the pool it records
+        the BufferPool's dirty page table, so recovery knows from where
+        on each dirty page has to be redone. Writing pages back is left
+        to the PageCleaner, which also keeps the redo window short.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        BufferPool bp = Database.getBufferPool();
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            long startCpOffset = currentOffset;
+            Checkpoint cp = new Checkpoint();
+            //list of outstanding transactions
+            cp.active.putAll(tidToFirstLogRecord);
+            // the pool registers a page before it logs it, so every page
+            // logged before this point is in the table or on disk
+            cp.redoOffset = startCpOffset;
+            for (Map.Entry<PageId, Long> e : bp.getDirtyPageTable().entrySet()) {
+                long recOffset = Math.min(e.getValue(), startCpOffset);
+                cp.dirtyPages.put(e.getKey(), recOffset);
+                cp.redoOffset = Math.min(cp.redoOffset, recOffset);
             }
+            appendRecord(CHECKPOINT_RECORD, -1, cp.encode()); //no tid
+            imagedPages.clear();
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            writeHeader(startCpOffset);
+            checkpointRedoLsn = cp.redoOffset;
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
+        consumption: delete the segments that end before the oldest
+        record the last checkpoint still needs. Only choosing them
+        holds up appends; files are deleted afterwards.
+    */
+    public void logTruncate() throws IOException {
+        ArrayList<File> obsolete = new ArrayList<File>();
+        synchronized (this) {
+            preAppend();
+            header.seek(0);
+            long cpLoc = header.readLong();
+            if (cpLoc == NO_CHECKPOINT_ID)
+                return;
+
+            long minLogRecord = cpLoc;
+            Record cpRecord;
+            try (LogReader in = new LogReader(cpLoc)) {
+                cpRecord = in.next();
+            }
+            if (cpRecord.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+            Checkpoint cp = Checkpoint.read(cpRecord.body);
+            for (long firstLogRecord : cp.active.values()) {
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+            // the redo offset is the oldest entry of the dirty page table
+            if (cp.redoOffset < minLogRecord) {
+                minLogRecord = cp.redoOffset;
+            }
 
-            } catch (EOFException e) {
-                break;
+            // we can drop every segment before the one holding minLogRecord
+            Long keep = segments.floorKey(minLogRecord);
+            if (keep != null) {
+                Map<Long, File> head = segments.headMap(keep);
+                obsolete.addAll(head.values());
+                head.clear();
             }
+            Debug.log("TRUNCATING LOG; DROPPING " + obsolete.size() + " SEGMENTS BEFORE " + minLogRecord);
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        for (File f : obsolete)
+            f.delete();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -463,22 +1167,57 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        BufferPool bp = Database.getBufferPool();
+        // under STEAL, put back the pages that were never logged first;
+        // once they are no longer dirty for tid, nobody can steal them
+        // and log more records for tid while we read them
+        if (bp.isStealNoForce())
+            bp.restoreBeforeImages(tid);
+
+        // tid's records of every page it logged, oldest first
+        LinkedHashMap<PageId, ArrayList<Record>> records = new LinkedHashMap<PageId, ArrayList<Record>>();
+        synchronized(this) {
+            preAppend();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                throw new NoSuchElementException("no live transaction " + tid.getId());
+            writeOut(currentOffset);
+            LogReader in = new LogReader(first);
+            while (in.position() < currentOffset) {
+                Record r = in.next();
+                if ((r.type == UPDATE_RECORD || r.type == DELTA_RECORD) && r.tid == tid.getId()) {
+                    PageId pid = readPageId(r.body.duplicate());
+                    if (!records.containsKey(pid))
+                        records.put(pid, new ArrayList<Record>());
+                    records.get(pid).add(r);
+                }
             }
+            in.close();
         }
+
+        // without holding the log, since the BufferPool may log pages
+        // under the latches restorePage takes
+        for (Map.Entry<PageId, ArrayList<Record>> e : records.entrySet())
+            bp.restorePage(undoPage(e.getKey(), e.getValue()));
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // checkpoints are fuzzy, so write the committed pages first
+            // to make startup fast; under NO STEAL there are none. Not
+            // under the monitor, as the pool logs under its latches.
+            BufferPool bp = Database.getBufferPool();
+            if (bp.isStealNoForce())
+                bp.flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                header.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,14 +1227,277 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        Must run before any transaction starts.
+        <p>
+        Recovery works in three phases, in the manner of ARIES:
+        analysis reads the log from the last checkpoint (or from the
+        start of the oldest transaction still running at that point)
+        and finds the committed and the unfinished (loser)
+        transactions; redo installs the changes of committed
+        transactions that the checkpoint may not have written; undo
+        takes back the changes of losers. Redo applies the committed
+        deltas of every page on top of its last whole after image, or
+        of the page on disk; undo applies the before bytes of a
+        loser's records newest first. Byte ranges hold the bytes
+        themselves rather than operations, so applying them again
+        does no harm. Pages are redone in parallel, partitioned by
+        PageId over {@link #setRecoveryThreads} workers.
+        <p>
+        Aborted transactions need no work: their pages were rolled
+        back on disk before their abort record was written. Losers
+        get an abort record at the end, so that a later recovery does
+        not roll them back again.
+
+        @see #getRecoveryPhase
+        @see #getRecoveryProgress
+        @see #getRecoveryMillis
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        // the monitor keeps appends out. Redo workers and undo restore
+        // pages under shard latches while it is held, against the lock
+        // order; that is safe only because recovery runs before any
+        // transaction, so no thread holds a latch and waits for the log
+        synchronized (this) {
+            recoveryUndecided = false;
+            tidToFirstLogRecord.clear();
+            for (RecoveryPhase phase : RecoveryPhase.values())
+                recoveryMillis.set(phase.ordinal(), 0);
+            imagedPages.clear();
+            if (header.length() < HEADER_SIZE || segments.isEmpty()) {
+                startOver();
+                startPhase(RecoveryPhase.DONE, 0);
+                return;
+            }
+
+            // analysis: find the outcome of every transaction and
+            // where its updates are. A record cut short by the crash
+            // ends the log.
+            long phaseStart = System.nanoTime();
+            header.seek(0);
+            long cpLoc = header.readLong();
+            int version = header.readInt();
+            if (version != LOG_FORMAT_VERSION)
+                throw new IOException("cannot recover from log format version " + version);
+            LogReader in = new LogReader(segments.firstKey());
+            long scanFrom = in.position(), redoFrom = scanFrom;
+            long cpStart = scanFrom;
+            // redo offset of each page dirty at the checkpoint
+            Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                Checkpoint cp = Checkpoint.read(in.read(cpLoc).body);
+                scanFrom = cpStart = cpLoc;
+                for (long first : cp.active.values())
+                    scanFrom = Math.min(scanFrom, first);
+                dirtyPages = cp.dirtyPages;
+                redoFrom = cp.redoOffset;
+                scanFrom = Math.min(scanFrom, redoFrom);
+            }
+            long logEnd = segments.lastKey() + segments.lastEntry().getValue().length();
+            startPhase(RecoveryPhase.ANALYSIS, logEnd - scanFrom);
+
+            HashSet<Long> committed = new HashSet<Long>();
+            HashSet<Long> finished = new HashSet<Long>();
+            LinkedHashSet<Long> losers = new LinkedHashSet<Long>();
+            ArrayList<Update> updates = new ArrayList<Update>();
+            long end = scanFrom;
+            in.seek(scanFrom);
+            while (true) {
+                try {
+                    Record r = in.next();
+                    switch (r.type) {
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        updates.add(new Update(end, r.tid, readPageId(r.body), r.type == UPDATE_RECORD));
+                        losers.add(r.tid);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        break;
+                    case BEGIN_RECORD:
+                        losers.add(r.tid);
+                        break;
+                    case COMMIT_RECORD:
+                        committed.add(r.tid);
+                        finished.add(r.tid);
+                        break;
+                    case ABORT_RECORD:
+                        finished.add(r.tid);
+                        break;
+                    default:
+                        throw new EOFException();
+                    }
+                    end = in.position();
+                    recoveryDone.set(end - scanFrom);
+                } catch (EOFException e) {
+                    break;
+                }
             }
-         }
+            losers.removeAll(finished);
+
+            // records to redo and to undo of every page, oldest first
+            LinkedHashMap<PageId, ArrayList<Long>> redo = new LinkedHashMap<PageId, ArrayList<Long>>();
+            LinkedHashMap<PageId, ArrayList<Long>> undo = new LinkedHashMap<PageId, ArrayList<Long>>();
+            for (Update u : updates) {
+                // before the checkpoint, only pages that were dirty
+                // then, from their first change not on disk
+                Long recOffset = u.offset >= cpStart ? Long.valueOf(cpStart) : dirtyPages.get(u.pid);
+                LinkedHashMap<PageId, ArrayList<Long>> target;
+                if (committed.contains(u.tid) && recOffset != null && u.offset >= recOffset)
+                    target = redo;
+                else if (losers.contains(u.tid))
+                    target = undo;
+                else
+                    continue;
+                if (!target.containsKey(u.pid))
+                    target.put(u.pid, new ArrayList<Long>());
+                // a whole after image makes the earlier records moot
+                if (target == redo && u.whole)
+                    target.get(u.pid).clear();
+                target.get(u.pid).add(u.offset);
+            }
+            endPhase(RecoveryPhase.ANALYSIS, phaseStart);
+            Debug.log("RECOVERY: " + committed.size() + " committed, " + losers.size() + " losers, "
+                      + redo.size() + " pages to redo, " + undo.size() + " to undo");
+
+            phaseStart = System.nanoTime();
+            startPhase(RecoveryPhase.REDO, redo.size());
+            redo(redo);
+            endPhase(RecoveryPhase.REDO, phaseStart);
+
+            // a page has at most one loser: it held the page's write
+            // lock until the crash
+            phaseStart = System.nanoTime();
+            startPhase(RecoveryPhase.UNDO, undo.size());
+            BufferPool bp = Database.getBufferPool();
+            for (Map.Entry<PageId, ArrayList<Long>> e : undo.entrySet()) {
+                bp.restorePage(undoPage(e.getKey(), readRecords(in, e.getValue())));
+                recoveryDone.incrementAndGet();
+            }
+            in.close();
+
+            // losers are rolled back now; make sure a later recovery
+            // does not roll them back again over newer changes
+            cutOff(end);
+            for (long loser : losers) {
+                preAppend();
+                appendRecord(ABORT_RECORD, loser, NO_BODY);
+            }
+            force();
+            endPhase(RecoveryPhase.UNDO, phaseStart);
+            startPhase(RecoveryPhase.DONE, 0);
+        }
+    }
+
+    /* Redo the records at the given offsets of every page, on worker
+       threads; every worker owns the pages whose ids hash to it, and
+       reads the log through its own file handle. */
+    private void redo(LinkedHashMap<PageId, ArrayList<Long>> redo) throws IOException {
+        int workers = Math.max(1, Math.min(recoveryThreads, redo.size()));
+        ArrayList<ArrayList<Map.Entry<PageId, ArrayList<Long>>>> parts =
+            new ArrayList<ArrayList<Map.Entry<PageId, ArrayList<Long>>>>();
+        for (int i = 0; i < workers; i++)
+            parts.add(new ArrayList<Map.Entry<PageId, ArrayList<Long>>>());
+        for (Map.Entry<PageId, ArrayList<Long>> e : redo.entrySet())
+            parts.get((e.getKey().hashCode() & 0x7fffffff) % workers).add(e);
+
+        final BufferPool bp = Database.getBufferPool();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "simpledb-redo");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final ArrayList<Map.Entry<PageId, ArrayList<Long>>> part : parts) {
+                done.add(pool.submit(() -> {
+                    LogReader in = new LogReader(0);
+                    try {
+                        for (Map.Entry<PageId, ArrayList<Long>> e : part) {
+                            bp.restorePage(redoPage(e.getKey(), readRecords(in, e.getValue())));
+                            recoveryDone.incrementAndGet();
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("redo failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during redo");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static ArrayList<Record> readRecords(LogReader in, List<Long> offsets) throws IOException {
+        ArrayList<Record> records = new ArrayList<Record>();
+        for (long offset : offsets)
+            records.add(in.read(offset));
+        return records;
+    }
+
+    /* End the log at lsn, dropping a record torn by a crash and whatever
+       follows it, and append from there */
+    private void cutOff(long lsn) throws IOException {
+        if (raf != null)
+            raf.close();
+        long start = segments.floorKey(lsn);
+        Map<Long, File> tail = segments.tailMap(start, false);
+        for (File f : tail.values())
+            f.delete();
+        tail.clear();
+        openSegment(start);
+        raf.setLength(lsn - start);
+        raf.seek(lsn - start);
+        currentOffset = lsn;
+        writtenLsn = lsn;
+    }
+
+    private void startPhase(RecoveryPhase phase, long total) {
+        recoveryDone.set(0);
+        recoveryTotal.set(total);
+        recoveryPhase = phase;
+    }
+
+    private void endPhase(RecoveryPhase phase, long startNanos) {
+        recoveryMillis.set(phase.ordinal(), (System.nanoTime() - startNanos) / 1000000);
+    }
+
+    /** @return the phase recovery is in, or DONE once it has finished */
+    public RecoveryPhase getRecoveryPhase() {
+        return recoveryPhase;
+    }
+
+    /** @return how much of the current recovery phase is done, from 0 to 1:
+        log bytes read by analysis, pages written by redo and undo
+    */
+    public double getRecoveryProgress() {
+        long total = recoveryTotal.get();
+        return total == 0 ? 1.0 : Math.min(1.0, (double) recoveryDone.get() / total);
+    }
+
+    /** @return time the last recovery spent in the given phase, in ms */
+    public long getRecoveryMillis(RecoveryPhase phase) {
+        return recoveryMillis.get(phase.ordinal());
+    }
+
+    /** @return number of threads that redo pages during recovery */
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /** Set the number of threads that redo pages during recovery */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("recovery needs at least one thread");
+        recoveryThreads = threads;
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1505,26 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
+    /** Force the whole log to disk */
+    public synchronized void force() throws IOException {
+        force(currentOffset);
+    }
+
+    /** Force the log before the given LSN to disk, such as the end of
+        a record logWrite returned. Returns at once if it already is.
+    */
+    public synchronized void force(long lsn) throws IOException {
+        lsn = Math.min(lsn, currentOffset);
+        synchronized (flushLock) {
+            if (forcedLsn >= lsn)
+                return;
+        }
+        writeOut(lsn);
         raf.getChannel().force(true);
+        synchronized (flushLock) {
+            forces++;
+        }
+        forced(lsn);
     }
 
 }
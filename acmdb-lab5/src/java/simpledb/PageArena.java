@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * PageArena is a fixed block of off-heap memory carved into page sized
+ * frames. A BufferPool built in off-heap mode owns one arena per shard and
+ * hands a frame to every page it caches; HeapPage and BTreeLeafPage then act
+ * as views that decode tuples from their frame on demand, so a large pool
+ * does not keep millions of long lived Tuple and Field objects on the heap.
+ * <p>
+ * The static helpers encode and decode tuples at absolute offsets of a frame.
+ * They never move the position of the frame buffer, so several threads may
+ * read the same frame at once.
+ *
+ * @see BufferPool#BufferPool(int, int, ReplacementPolicy.Factory, boolean)
+ */
+public class PageArena {
+    private final ByteBuffer memory;
+    private final int pageSize;
+    private final int numFrames;
+    private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+
+    /**
+     * Allocate an arena of numFrames frames of BufferPool.getPageSize() bytes.
+     */
+    public PageArena(int numFrames) {
+        this.pageSize = BufferPool.getPageSize();
+        this.numFrames = numFrames;
+        this.memory = ByteBuffer.allocateDirect(numFrames * pageSize);
+        for (int i = 0; i < numFrames; i++)
+            free.add(i);
+    }
+
+    /** @return the total number of frames in this arena */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** @return the number of frames not currently handed out */
+    public synchronized int getNumFreeFrames() {
+        return free.size();
+    }
+
+    /**
+     * Take a free frame.
+     * @return the frame number, or -1 if every frame is in use
+     */
+    public synchronized int allocate() {
+        Integer f = free.poll();
+        return f == null ? -1 : f;
+    }
+
+    /** Give a frame back to the arena. */
+    public synchronized void release(int frameNo) {
+        free.push(frameNo);
+    }
+
+    /**
+     * @return a buffer covering exactly the given frame; its position is 0
+     *   and its limit and capacity are the page size
+     */
+    public ByteBuffer frame(int frameNo) {
+        ByteBuffer dup = memory.duplicate();
+        dup.position(frameNo * pageSize);
+        dup.limit(frameNo * pageSize + pageSize);
+        return dup.slice();
+    }
+
+    /** Copy len bytes starting at offset out of a frame. */
+    static byte[] read(ByteBuffer frame, int offset, int len) {
+        ByteBuffer dup = frame.duplicate();
+        dup.clear();
+        dup.position(offset);
+        byte[] bytes = new byte[len];
+        dup.get(bytes);
+        return bytes;
+    }
+
+    /** Copy bytes into a frame starting at offset. */
+    static void write(ByteBuffer frame, int offset, byte[] bytes) {
+        ByteBuffer dup = frame.duplicate();
+        dup.clear();
+        dup.position(offset);
+        dup.put(bytes);
+    }
+
+    /** Decode a single field of the given type stored at offset. */
+    static Field readField(ByteBuffer frame, int offset, Type type) {
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(read(frame, offset, type.getLen())));
+        try {
+            return type.parse(dis);
+        } catch (java.text.ParseException e) {
+            throw new java.util.NoSuchElementException("parsing error!");
+        }
+    }
+
+    /** Decode a whole tuple stored at offset and tag it with rid. */
+    static Tuple readTuple(ByteBuffer frame, int offset, TupleDesc td, RecordId rid) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(rid);
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, readField(frame, offset, type));
+            offset += type.getLen();
+        }
+        return t;
+    }
+
+    /** Encode the fields of t into the frame starting at offset. */
+    static void writeTuple(ByteBuffer frame, int offset, Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            // writing to memory really shouldn't fail
+            e.printStackTrace();
+        }
+        write(frame, offset, baos.toByteArray());
+    }
+
+    /**
+     * Fill a frame from a file region; bytes past the end of the file are
+     * zeroed.
+     */
+    static void load(RandomAccessFile raf, long position, ByteBuffer frame) throws IOException {
+        ByteBuffer dst = frame.duplicate();
+        dst.clear();
+        while (dst.hasRemaining()) {
+            int n = raf.getChannel().read(dst, position + dst.position());
+            if (n < 0)
+                break;
+        }
+        while (dst.hasRemaining())
+            dst.put((byte) 0);
+    }
+}
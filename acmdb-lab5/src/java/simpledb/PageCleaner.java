@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PageCleaner is the background writer of a BufferPool.
+ * <p>
+ * Committing transactions hand their dirty pages to the cleaner through a
+ * bounded queue and wait for them to reach disk. The cleaner drains every
+ * batch that is waiting, so pages of concurrent commits are written
+ * together: sorted by page number per file, with runs of adjacent pages
+ * merged into a single write and one sync per file.
+ * <p>
+ * Between batches the cleaner sweeps the pool and, whenever fewer than
+ * {@link #getCleanFraction()} of a shard's frames are clean, writes back
+ * dirty pages that no running transaction has locked, so that getPage
+ * rarely finds a shard without a clean page to evict. Under NO-FORCE the
+ * sweep also writes the oldest committed pages and takes a checkpoint
+ * whenever recovery would have to redo more than
+ * {@link #getMaxRedoBytes()} of log.
+ * <p>
+ * The worker thread is started on demand and exits after it has been idle
+ * for a while, so short lived pools (as in the tests) do not leak threads.
+ */
+public class PageCleaner {
+    /** Default number of commit batches that may wait in the queue */
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    /** Default fraction of each shard's frames the cleaner tries to keep clean */
+    public static final double DEFAULT_CLEAN_FRACTION = 0.25;
+    /** Default bound on the log recovery has to redo, in bytes */
+    public static final long DEFAULT_MAX_REDO_BYTES = 64L << 20;
+
+    private static final long SWEEP_MILLIS = 50;
+    private static final long IDLE_MILLIS = 1000;
+
+    private final BufferPool pool;
+    private final ArrayBlockingQueue<WriteBatch> queue;
+    private volatile double cleanFraction = DEFAULT_CLEAN_FRACTION;
+    private volatile long maxRedoBytes = DEFAULT_MAX_REDO_BYTES;
+    private volatile Thread worker; // written under this
+
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    /** Pages of one commit, and the committer waiting for them. */
+    private static class WriteBatch {
+        final List<Page> pages;
+        final CountDownLatch done = new CountDownLatch(1);
+        IOException error;
+
+        WriteBatch(List<Page> pages) {
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * Create the cleaner of the given pool.
+     *
+     * @param pool the pool whose pages are written
+     * @param queueSize maximum number of commit batches waiting to be written
+     */
+    public PageCleaner(BufferPool pool, int queueSize) {
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<WriteBatch>(queueSize);
+    }
+
+    /** @return the fraction of each shard's frames the cleaner keeps clean */
+    public double getCleanFraction() {
+        return cleanFraction;
+    }
+
+    /**
+     * Set the fraction of each shard's frames the cleaner keeps clean; 0
+     * turns background write-back off.
+     */
+    public void setCleanFraction(double cleanFraction) {
+        if (cleanFraction < 0 || cleanFraction > 1)
+            throw new IllegalArgumentException("clean fraction must be in [0, 1]");
+        this.cleanFraction = cleanFraction;
+    }
+
+    /** @return the amount of log the cleaner lets recovery have to redo */
+    public long getMaxRedoBytes() {
+        return maxRedoBytes;
+    }
+
+    /**
+     * Bound the amount of log recovery has to redo under NO-FORCE, in
+     * bytes; 0 turns the bound off.
+     */
+    public void setMaxRedoBytes(long maxRedoBytes) {
+        if (maxRedoBytes < 0)
+            throw new IllegalArgumentException("redo bound must not be negative");
+        this.maxRedoBytes = maxRedoBytes;
+    }
+
+    /** @return number of pages written by the cleaner */
+    public long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    /** @return number of write calls issued after adjacent pages were merged */
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    /**
+     * Queue the pages for writing and block until they are on disk.
+     *
+     * @throws IOException if writing any page of the batch failed
+     */
+    public void writeAndWait(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        WriteBatch batch = new WriteBatch(pages);
+        try {
+            queue.put(batch);
+            start();
+            batch.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for page writes");
+        }
+        if (batch.error != null)
+            throw batch.error;
+    }
+
+    /** Make sure the worker thread is running, e.g. after pages were dirtied. */
+    public void wake() {
+        if (worker == null)
+            start();
+    }
+
+    /*
+     * Must run under the monitor after a batch was queued: the worker only
+     * exits, under the same monitor, when it finds the queue empty.
+     */
+    private synchronized void start() {
+        if (worker != null)
+            return;
+        worker = new Thread(this::run, "simpledb-page-cleaner");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Count pages and merged writes of a batch sorted by page number. */
+    void recordWrite(List<Page> sorted) {
+        pagesWritten.add(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i == 0 || sorted.get(i).getId().pageNumber() != sorted.get(i - 1).getId().pageNumber() + 1)
+                writes.increment();
+        }
+    }
+
+    private void run() {
+        long lastSweep = 0;
+        long lastWork = System.currentTimeMillis();
+        while (true) {
+            WriteBatch first = null;
+            try {
+                first = queue.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // nobody interrupts the cleaner on purpose; keep going
+            }
+            if (first != null) {
+                ArrayList<WriteBatch> batches = new ArrayList<WriteBatch>();
+                batches.add(first);
+                queue.drainTo(batches);
+                writeBatches(batches);
+                lastWork = System.currentTimeMillis();
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SWEEP_MILLIS) {
+                lastSweep = now;
+                try {
+                    if (cleanFraction > 0 && pool.cleanShards(cleanFraction) > 0)
+                        lastWork = now;
+                    if (maxRedoBytes > 0 && pool.limitRedoWindow(maxRedoBytes) > 0)
+                        lastWork = now;
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (now - lastWork > IDLE_MILLIS) {
+                synchronized (this) {
+                    if (queue.isEmpty()) {
+                        worker = null;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeBatches(List<WriteBatch> batches) {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (WriteBatch b : batches)
+            pages.addAll(b.pages);
+        IOException error = null;
+        try {
+            pool.writePages(pages);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            // never leave committers waiting on a dead batch
+            error = new IOException(e);
+        }
+        for (WriteBatch b : batches) {
+            b.error = error;
+            b.done.countDown();
+        }
+    }
+
+    /**
+     * Write pages of one file, sorted by page number, merging runs of
+     * adjacent pages into single writes. Page n is stored at offset
+     * base + (n - firstPageNo) * pageSize.
+     */
+    static void writeCoalesced(RandomAccessFile raf, List<Page> pages, long base, int firstPageNo)
+            throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int i = 0;
+        while (i < pages.size()) {
+            int j = i + 1;
+            while (j < pages.size()
+                    && pages.get(j).getId().pageNumber() == pages.get(j - 1).getId().pageNumber() + 1)
+                j++;
+            byte[] run = new byte[(j - i) * pageSize];
+            for (int k = i; k < j; k++)
+                System.arraycopy(pages.get(k).getPageData(), 0, run, (k - i) * pageSize, pageSize);
+            raf.seek(base + (long) (pages.get(i).getId().pageNumber() - firstPageNo) * pageSize);
+            raf.write(run);
+            i = j;
+        }
+    }
+}
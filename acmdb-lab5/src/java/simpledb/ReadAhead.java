@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ReadAhead follows a scan and loads the pages it is about to read into the
+ * BufferPool on a background thread, so that the scan finds them cached
+ * instead of waiting for one synchronous read per page.
+ * <p>
+ * Each scan owns a ReadAhead and reports every page it reads through
+ * {@link #accessed}. The scan is considered sequential once it has read
+ * {@link #TRIGGER} pages in a row that are each the successor of the one
+ * before, e.g. consecutive heap pages or a chain of right-sibling leaves.
+ * From then on a background task walks the successor chain and keeps up to
+ * K pages ahead of the scan. K starts at {@link #MIN_WINDOW} and doubles
+ * every time the scan catches up with the read-ahead, i.e. when the scan
+ * consumes pages faster than they are read, up to {@link #MAX_WINDOW} or a
+ * quarter of the pool, whichever is smaller.
+ * <p>
+ * Read-ahead pages are loaded without locks; the scan still locks every
+ * page through BufferPool.getPage, which then just finds it cached.
+ */
+public class ReadAhead {
+    /** Sequential steps a scan must take before read-ahead starts */
+    public static final int TRIGGER = 2;
+    /** Initial read-ahead window, in pages */
+    public static final int MIN_WINDOW = 4;
+    /** Largest read-ahead window, in pages */
+    public static final int MAX_WINDOW = 64;
+
+    private static final ExecutorService IO = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "simpledb-read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Tells the read-ahead which page a scan reads after a given one.
+     */
+    public interface Successor {
+        /** @return the id of the page after page, or null if page is the last one */
+        public PageId next(Page page);
+    }
+
+    private final BufferPool pool;
+    private final BufferRing ring;
+    private final Successor successor;
+    private final int maxWindow;
+
+    // all guarded by this
+    private Page last;      // page the scan read most recently
+    private int run;        // sequential steps taken by the scan
+    private Page frontier;  // furthest page read ahead so far
+    private int ahead;      // pages read ahead that the scan has not reached yet
+    private int window;
+    private boolean walking;
+    private int generation; // bumped to stop a walker that is no longer wanted
+
+    /**
+     * Create the read-ahead for one scan over pages of the given pool.
+     */
+    public ReadAhead(BufferPool pool, Successor successor) {
+        this(pool, null, successor);
+    }
+
+    /**
+     * Create the read-ahead for a scan that reads through a BufferRing; the
+     * pages read ahead go into the ring too, and the window never exceeds
+     * half of it.
+     */
+    public ReadAhead(BufferPool pool, BufferRing ring, Successor successor) {
+        this.pool = pool;
+        this.ring = ring;
+        this.successor = successor;
+        int max = Math.min(MAX_WINDOW, pool.getNumPages() / 4);
+        this.maxWindow = ring == null ? max : Math.min(max, ring.size() / 2);
+        this.window = Math.min(MIN_WINDOW, maxWindow);
+    }
+
+    /** @return the current read-ahead window, in pages */
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * The scan has just read page (through BufferPool.getPage).
+     */
+    public synchronized void accessed(Page page) {
+        boolean sequential = last != null && page.getId().equals(successor.next(last));
+        last = page;
+        if (!sequential) {
+            restart(page);
+            run = 0;
+            window = Math.min(MIN_WINDOW, maxWindow);
+            return;
+        }
+        run++;
+        if (maxWindow < MIN_WINDOW || run < TRIGGER)
+            return;
+
+        if (ahead > 0) {
+            ahead--;
+        } else if (walking) {
+            // the scan overtook the read-ahead: read further ahead, starting here
+            window = Math.min(2 * window, maxWindow);
+            restart(page);
+        } else {
+            frontier = page;
+        }
+        if (!walking && ahead <= window / 2)
+            walk(generation, frontier, window - ahead);
+    }
+
+    /** Stop reading ahead, e.g. because the scan was closed. */
+    public synchronized void stop() {
+        restart(null);
+        last = null;
+        run = 0;
+    }
+
+    private void restart(Page from) {
+        generation++;
+        walking = false;
+        ahead = 0;
+        frontier = from;
+    }
+
+    private void walk(final int gen, final Page from, final int pages) {
+        walking = true;
+        IO.execute(() -> {
+            try {
+                Page cur = from;
+                for (int i = 0; i < pages; i++) {
+                    PageId next = successor.next(cur);
+                    if (next == null)
+                        break;
+                    Page page = pool.prefetchPage(next, ring);
+                    if (page == null)
+                        break;
+                    synchronized (this) {
+                        if (gen != generation)
+                            return;
+                        frontier = page;
+                        ahead++;
+                    }
+                    cur = page;
+                }
+            } finally {
+                synchronized (this) {
+                    if (gen == generation)
+                        walking = false;
+                }
+            }
+        });
+    }
+}
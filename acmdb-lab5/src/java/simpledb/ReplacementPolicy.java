@@ -0,0 +1,53 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give
+ * up when it needs a free frame. The BufferPool tells the policy about every
+ * page that enters, is touched, or leaves the pool, and asks it for a victim
+ * from {@link BufferPool#evictPage}.
+ * <p>
+ * A policy instance belongs to exactly one BufferPool and is chosen when the
+ * pool (or pool shard) is built; see
+ * {@link BufferPool#BufferPool(int, int, ReplacementPolicy.Factory)}.
+ * Implementations must be safe to call from several threads at once.
+ *
+ * @see ClockPolicy
+ * @see LRUKPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Callback used by the policy to ask the BufferPool whether a candidate
+     * page may be evicted right now (e.g. it is not dirty).
+     */
+    public interface VictimFilter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Creates policy instances; a sharded BufferPool needs one per shard.
+     */
+    public interface Factory {
+        public ReplacementPolicy create();
+    }
+
+    /** A page has just been read into the pool. */
+    public void pageAdded(PageId pid);
+
+    /** A page that is already resident was requested again. */
+    public void pageAccessed(PageId pid);
+
+    /** A page has left the pool (evicted or discarded). */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page to evict next.
+     *
+     * @param filter tells the policy which resident pages may be evicted
+     * @return the id of the victim, or null if no resident page passes the filter
+     */
+    public PageId chooseVictim(VictimFilter filter);
+
+    /** @return a short human readable name of this policy, e.g. "CLOCK" */
+    public String getName();
+}
@@ -9,6 +9,12 @@ import java.util.*;
  */
 public class SeqScan implements DbIterator {
 
+    /**
+     * Scans of tables with at least this many pages lock the whole table
+     * shared instead of taking one lock per page.
+     */
+    public static final int TABLE_LOCK_PAGES = 256;
+
     private static final long serialVersionUID = 1L;
     private TransactionId tid;
     private int tableid;
@@ -82,7 +88,13 @@ public class SeqScan implements DbIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        iterator = file.iterator(tid);
+        // a scan much larger than the pool reads through a private ring so
+        // that it does not flush everybody else's pages
+        int pages = TableStats.estimateScanPages(file);
+        if (pages >= TABLE_LOCK_PAGES)
+            Database.getBufferPool().lockTable(tid, file.getId(), Permissions.READ_ONLY);
+        BufferRing ring = BufferRing.forScan(Database.getBufferPool(), pages);
+        iterator = ring == null ? file.iterator(tid) : file.iterator(tid, ring);
         iterator.open();
     }
 
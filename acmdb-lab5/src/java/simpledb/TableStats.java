@@ -170,8 +170,19 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        HeapFile heapfile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        return heapfile.numPages() * ioCostPerPage;
+        return estimateScanPages(Database.getCatalog().getDatabaseFile(tableid)) * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the number of pages a sequential scan of the given file
+     * reads.
+     */
+    public static int estimateScanPages(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).numPages();
+        return 0;
     }
 
     /**
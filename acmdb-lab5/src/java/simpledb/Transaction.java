@@ -15,6 +15,18 @@ public class Transaction {
         tid = new TransactionId();
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it sees the database
+     * as committed at this point and takes no locks, so it neither blocks
+     * nor is blocked by writers.
+     *
+     * @see BufferPool#beginSnapshot
+     */
+    public void startSnapshot() {
+        Database.getBufferPool().beginSnapshot(tid);
+        start();
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
@@ -47,7 +59,8 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
+                //write all the dirty pages for this transaction out (or,
+                //under NO-FORCE, log them)
                 Database.getBufferPool().flushPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
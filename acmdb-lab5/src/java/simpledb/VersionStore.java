@@ -0,0 +1,182 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore gives snapshot transactions a consistent view of the
+ * database without locks.
+ * <p>
+ * Every commit gets a timestamp from a global clock, and a snapshot
+ * transaction reads the database as of the clock value when it began. The
+ * committed state of a cached page is always available as its before
+ * image: writers change the page itself, and {@link #publish} moves the
+ * before image forward only when they commit. If a page was committed again
+ * after a snapshot began, the snapshot reads an older version instead; the
+ * store keeps those as a chain per page, each valid for a range of
+ * timestamps.
+ * <p>
+ * A committing transaction writes its pages before it publishes them, so
+ * for a short while the file holds changes that snapshots must not see yet.
+ * {@link #prepare} therefore keeps the committed image of every page just
+ * before it is written, and snapshots read that image until the commit is
+ * published, even if the page was evicted and read again in between.
+ * <p>
+ * Old versions are only kept while some snapshot may still need them, and
+ * are dropped as soon as the oldest running snapshot has moved past them.
+ */
+public class VersionStore {
+
+    /** The committed state of a page for snapshots in [start, end). */
+    private static class Version {
+        final Page image;
+        final long start, end;
+
+        Version(Page image, long start, long end) {
+            this.image = image;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // read without the monitor on every getPage; written under it
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    // all guarded by this
+    private long clock = 0;
+    private final TreeMap<Long, Integer> activeTimestamps = new TreeMap<>();
+    // commit timestamp of each page's current before image, if a snapshot may care
+    private final HashMap<PageId, Long> committedAt = new HashMap<>();
+    private final HashMap<PageId, ArrayList<Version>> versions = new HashMap<>();
+    private int numVersions = 0;
+    // committed images of pages written but not yet published, and their writers
+    private final HashMap<PageId, Page> prepared = new HashMap<>();
+    private final HashMap<TransactionId, ArrayList<Page>> preparedBy = new HashMap<>();
+
+    /** Start a snapshot for tid, seeing everything committed so far. */
+    public synchronized void begin(TransactionId tid) {
+        if (snapshots.containsKey(tid))
+            return;
+        snapshots.put(tid, clock);
+        activeTimestamps.merge(clock, 1, Integer::sum);
+    }
+
+    /** @return true if tid reads from a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** End tid's snapshot, if it has one, and drop versions nobody needs any more. */
+    public synchronized void end(TransactionId tid) {
+        Long ts = snapshots.remove(tid);
+        if (ts == null)
+            return;
+        activeTimestamps.compute(ts, (k, n) -> n > 1 ? n - 1 : null);
+        prune();
+    }
+
+    /** @return number of old page versions currently kept */
+    public synchronized int getVersionCount() {
+        return numVersions;
+    }
+
+    /**
+     * Return the version of page that tid's snapshot sees. The result is a
+     * private copy that nobody modifies.
+     *
+     * @param page the cached (or just loaded) copy of the page
+     * @throws DbException if tid has no snapshot
+     */
+    public synchronized Page read(TransactionId tid, Page page) throws DbException {
+        Long ts = snapshots.get(tid);
+        if (ts == null)
+            throw new DbException("transaction has no snapshot");
+        PageId pid = page.getId();
+        Long committed = committedAt.get(pid);
+        if (committed == null || committed <= ts) {
+            Page image = prepared.get(pid);
+            return image != null ? image : page.getBeforeImage();
+        }
+        for (Version v : versions.getOrDefault(pid, new ArrayList<>())) {
+            if (v.start <= ts && ts < v.end)
+                return v.image;
+        }
+        throw new DbException("no version of " + pid + " for snapshot " + ts);
+    }
+
+    /**
+     * Remember the committed images of pages tid is about to write, so that
+     * snapshots do not see the written data before tid commits.
+     */
+    public synchronized void prepare(TransactionId tid, Collection<Page> pages) {
+        for (Page page : pages) {
+            if (prepared.containsKey(page.getId()))
+                continue;
+            prepared.put(page.getId(), page.getBeforeImage());
+            preparedBy.computeIfAbsent(tid, k -> new ArrayList<>()).add(page);
+        }
+    }
+
+    /**
+     * tid has committed: make the pages it wrote visible to snapshots that
+     * begin from now on. Must be called while tid still holds its locks.
+     */
+    public synchronized void publish(TransactionId tid) {
+        long ts = ++clock;
+        ArrayList<Page> pages = preparedBy.remove(tid);
+        if (pages == null)
+            return;
+        boolean keep = !activeTimestamps.isEmpty();
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            Page image = prepared.remove(pid);
+            if (keep) {
+                Long start = committedAt.get(pid);
+                versions.computeIfAbsent(pid, k -> new ArrayList<>())
+                        .add(new Version(image, start == null ? 0 : start, ts));
+                numVersions++;
+                committedAt.put(pid, ts);
+            }
+            // if the page was evicted and read again meanwhile, the new copy
+            // already has the committed data as its before image
+            page.setBeforeImage();
+        }
+    }
+
+    /** tid aborted: forget the images it prepared. */
+    public synchronized void discard(TransactionId tid) {
+        ArrayList<Page> pages = preparedBy.remove(tid);
+        if (pages == null)
+            return;
+        for (Page page : pages)
+            prepared.remove(page.getId());
+    }
+
+    /*
+     * A version is needed while a snapshot older than its end runs. Commit
+     * timestamps no newer than every snapshot are as good as none.
+     */
+    private void prune() {
+        if (activeTimestamps.isEmpty()) {
+            versions.clear();
+            committedAt.clear();
+            numVersions = 0;
+            return;
+        }
+        long oldest = activeTimestamps.firstKey();
+        for (Iterator<Map.Entry<PageId, ArrayList<Version>>> it = versions.entrySet().iterator(); it.hasNext(); ) {
+            ArrayList<Version> chain = it.next().getValue();
+            int before = chain.size();
+            chain.removeIf(v -> v.end <= oldest);
+            numVersions -= before - chain.size();
+            if (chain.isEmpty())
+                it.remove();
+        }
+        committedAt.values().removeIf(c -> c <= oldest);
+    }
+}
@@ -172,6 +172,80 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	/**
+	 * Descents lock internal pages only until the child is locked, so two
+	 * transactions can hold leaves of the same tree for writing at once.
+	 */
+	@Test
+	public void testDescentsShareInternalPages() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		bp.setLockTimeout(100);
+		TransactionId tid2 = new TransactionId();
+
+		BTreeLeafPage left = bf.findLeafPage(tid, Permissions.READ_WRITE, new IntField(0));
+		BTreeLeafPage right = bf.findLeafPage(tid2, Permissions.READ_WRITE,
+				new IntField(BTreeUtility.MAX_RAND_VALUE));
+		assertFalse(left.getId().equals(right.getId()));
+		assertEquals(left.getParentId(), right.getParentId());
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		for (TransactionId t : new TransactionId[] {tid, tid2}) {
+			assertFalse(bp.holdsLock(t, rootPtrId));
+			assertFalse(bp.holdsLock(t, left.getParentId()));
+		}
+		assertTrue(bp.holdsLock(tid, left.getId()));
+		assertTrue(bp.holdsLock(tid2, right.getId()));
+		bp.transactionComplete(tid2);
+	}
+
+	/**
+	 * Inserts that split leaves concurrently do not deadlock: a split
+	 * descends again from the root pointer without holding the full leaf
+	 * the first descent found.
+	 */
+	@Test
+	public void testConcurrentSplitsDoNotDeadlock() throws Exception {
+		final int threads = 4;
+		final int inserts = 500;
+		final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		Thread[] inserters = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final Random r = new Random(i);
+			inserters[i] = new Thread(() -> {
+				try {
+					for (int j = 0; j < inserts; j++) {
+						Transaction t = new Transaction();
+						t.start();
+						// a narrow key range, so inserters split the same leaves
+						Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+								BTreeUtility.getBTreeTuple(r.nextInt(1000), 2));
+						t.commit();
+					}
+				} catch (Exception e) {
+					errors.add(e);
+				}
+			});
+			inserters[i].start();
+		}
+		for (Thread t : inserters)
+			t.join();
+		assertEquals(Collections.emptyList(), errors);
+		assertEquals(0, bp.getLockManager().getDeadlockCount());
+
+		int count = 0;
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(2000 + threads * inserts, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
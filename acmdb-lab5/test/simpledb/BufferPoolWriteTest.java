@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -48,6 +49,22 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class whose page writes fail once told to, as on a full disk
+    class FailingHeapFile extends HeapFile {
+        boolean failWrites = false;
+
+        public FailingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePages(List<Page> pages) throws IOException {
+            if (failWrites)
+                throw new IOException("disk full");
+            super.writePages(pages);
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +150,30 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A commit that cannot write its pages fails, but still releases the
+     * locks of the transaction.
+     */
+    @Test public void failedCommitReleasesLocks() throws Exception {
+        FailingHeapFile ff = new FailingHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(ff, SystemTestUtil.getUUID());
+        BufferPool bp = Database.getBufferPool();
+        TransactionId writer = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(writer, ff.getId(), t);
+        PageId pid = t.getRecordId().getPageId();
+        assertTrue(bp.holdsLock(writer, pid));
+
+        ff.failWrites = true;
+        try {
+            bp.transactionComplete(writer, true);
+            fail("commit should not succeed without writing its pages");
+        } catch (IOException expected) {
+        }
+        assertFalse(bp.holdsLock(writer, pid));
+        bp.getPage(tid, pid, Permissions.READ_WRITE);
+    }
+
     /**
      * JUnit suite target
      */
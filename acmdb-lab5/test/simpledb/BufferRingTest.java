@@ -0,0 +1,69 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    /**
+     * Only scans larger than a fraction of a reasonably sized pool get a ring.
+     */
+    @Test public void forScan() {
+        BufferPool bp = new BufferPool(100);
+        assertNull(BufferRing.forScan(bp, 20));
+        BufferRing ring = BufferRing.forScan(bp, 400);
+        assertNotNull(ring);
+        assertEquals(25, ring.size());
+        assertNull(BufferRing.forScan(new BufferPool(8), 400));
+    }
+
+    /**
+     * The ring hands back its oldest page once it is full.
+     */
+    @Test public void recycleOldest() {
+        BufferRing ring = new BufferRing(2);
+        HeapPageId p0 = new HeapPageId(1, 0), p1 = new HeapPageId(1, 1), p2 = new HeapPageId(1, 2);
+        assertNull(ring.add(p0));
+        assertNull(ring.add(p1));
+        assertEquals(p0, ring.add(p2));
+        assertEquals(p1, ring.add(p0));
+    }
+
+    /**
+     * A SeqScan over a table four times the size of the pool returns every
+     * tuple without evicting the pages of a small hot table.
+     */
+    @Test public void largeScanKeepsWorkingSet() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 400, null, tuples);
+        BufferPool bp = Database.resetBufferPool(100);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        SystemTestUtil.matchTuples(big, tid, tuples);
+
+        bp.resetStats();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        assertEquals(hot.numPages(), bp.getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private LockManager lm;
+    private PageId pid;
+    private TransactionId t1, t2, t3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        lm.setTimeout(10000);
+        pid = new HeapPageId(1, 0);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    /** Acquire a lock on another thread and report the outcome to done. */
+    private Thread acquire(final TransactionId tid, final Permissions perm, final BlockingQueue<String> done) {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireLock(pid, tid, perm);
+                done.add(tid == t2 ? "t2" : "t3");
+            } catch (TransactionAbortedException e) {
+                done.add("aborted");
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /** Wait until thread t is parked in the lock queue. */
+    private static void awaitParked(Thread t) throws InterruptedException {
+        for (int i = 0; i < 1000 && t.getState() != Thread.State.TIMED_WAITING; i++)
+            Thread.sleep(1);
+        assertEquals(Thread.State.TIMED_WAITING, t.getState());
+    }
+
+    /**
+     * A waiter is woken as soon as the conflicting lock goes away, not on
+     * the next polling interval.
+     */
+    @Test public void wakeOnRelease() throws Exception {
+        BlockingQueue<String> done = new ArrayBlockingQueue<String>(4);
+        lm.acquireLock(pid, t1, Permissions.READ_WRITE);
+        awaitParked(acquire(t2, Permissions.READ_ONLY, done));
+
+        long start = System.nanoTime();
+        lm.releaseTransaction(t1);
+        assertEquals("t2", done.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    /**
+     * Waiters are granted in arrival order, and newcomers do not overtake
+     * them even when they would be compatible with the current holder.
+     */
+    @Test public void fifoOrder() throws Exception {
+        BlockingQueue<String> done = new ArrayBlockingQueue<String>(4);
+        lm.acquireLock(pid, t1, Permissions.READ_ONLY);
+        awaitParked(acquire(t2, Permissions.READ_WRITE, done));
+        awaitParked(acquire(t3, Permissions.READ_ONLY, done));
+        assertFalse(lm.grantLock(pid, new TransactionId(), Permissions.READ_ONLY));
+
+        lm.releaseTransaction(t1);
+        assertEquals("t2", done.poll(5, TimeUnit.SECONDS));
+        assertEquals(null, done.poll(50, TimeUnit.MILLISECONDS));
+        lm.releaseTransaction(t2);
+        assertEquals("t3", done.poll(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A transaction that waits longer than the timeout is aborted, and
+     * leaves the queue so that it does not hold up later waiters.
+     */
+    @Test public void timeout() throws Exception {
+        lm.setTimeout(50);
+        lm.acquireLock(pid, t1, Permissions.READ_WRITE);
+        try {
+            lm.acquireLock(pid, t2, Permissions.READ_WRITE);
+            fail("expected the lock request to time out");
+        } catch (TransactionAbortedException expected) {
+        }
+        lm.releaseTransaction(t1);
+        assertTrue(lm.grantLock(pid, t3, Permissions.READ_WRITE));
+    }
+
+    /**
+     * A deadlock is found as soon as it forms, and the youngest transaction
+     * of the cycle is aborted while the other one gets its lock.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        PageId other = new HeapPageId(1, 1);
+        BlockingQueue<String> done = new ArrayBlockingQueue<String>(4);
+        lm.acquireLock(pid, t1, Permissions.READ_ONLY);
+        lm.acquireLock(other, t2, Permissions.READ_ONLY);
+
+        // t2 waits for t1
+        awaitParked(acquire(t2, Permissions.READ_WRITE, done));
+        assertEquals(0, lm.getDeadlockCount());
+
+        // t1 waits for t2: cycle, and t2 is the younger one
+        long start = System.nanoTime();
+        Thread t1Write = new Thread(() -> {
+            try {
+                lm.acquireLock(other, t1, Permissions.READ_WRITE);
+                done.add("t1");
+            } catch (TransactionAbortedException e) {
+                done.add("t1 aborted");
+            }
+        });
+        t1Write.start();
+        assertEquals("aborted", done.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseTransaction(t2);
+        assertEquals("t1", done.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, lm.getDetectionCount());
+    }
+
+    /**
+     * Releasing a transaction drops exactly the locks it holds, including
+     * upgraded ones, and leaves those of other transactions alone.
+     */
+    @Test public void releaseTransaction() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            PageId p = new HeapPageId(1, i);
+            lm.acquireLock(p, t1, Permissions.READ_ONLY);
+            if (i % 2 == 0)
+                lm.acquireLock(p, t2, Permissions.READ_ONLY);
+        }
+        lm.acquireLock(new HeapPageId(1, 1), t1, Permissions.READ_WRITE);
+        assertFalse(lm.grantLock(new HeapPageId(1, 1), t3, Permissions.READ_ONLY));
+        assertFalse(lm.grantLock(new HeapPageId(1, 2), t1, Permissions.READ_WRITE));
+
+        lm.releaseTransaction(t1);
+        for (int i = 0; i < 100; i++) {
+            PageId p = new HeapPageId(1, i);
+            assertFalse(lm.holdsLock(t1, p));
+            assertEquals(i % 2 == 0, lm.holdsLock(t2, p));
+        }
+        assertTrue(lm.grantLock(new HeapPageId(1, 1), t3, Permissions.READ_WRITE));
+    }
+
+    /**
+     * A table S lock covers reads of all its pages and keeps writers out;
+     * a page X lock leaves an IX on the table that keeps table readers out.
+     */
+    @Test public void tableLocks() throws Exception {
+        lm.setTimeout(50);
+        PageId p0 = new HeapPageId(1, 0), p1 = new HeapPageId(1, 1);
+        lm.acquireTableLock(1, t1, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p1));
+        assertTrue(lm.grantLock(p0, t2, Permissions.READ_ONLY));
+        assertFalse(lm.grantLock(p1, t2, Permissions.READ_WRITE));
+        // another table is not affected
+        assertTrue(lm.grantLock(new HeapPageId(2, 0), t2, Permissions.READ_WRITE));
+
+        lm.releaseTransaction(t1);
+        lm.acquireLock(p1, t1, Permissions.READ_WRITE);
+        try {
+            lm.acquireTableLock(1, t3, Permissions.READ_ONLY);
+            fail("table S granted while another transaction writes a page");
+        } catch (TransactionAbortedException expected) {
+        }
+        lm.releaseTransaction(t1);
+        lm.releaseTransaction(t2);
+        lm.acquireTableLock(1, t3, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t3, p0));
+        assertFalse(lm.grantLock(p0, t1, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Past the threshold, page locks on a table turn into a table lock of
+     * the matching strength, unless another transaction is in the way.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(10);
+        for (int i = 0; i < 10; i++)
+            lm.acquireLock(new HeapPageId(1, i), t1, Permissions.READ_ONLY);
+        assertEquals(1, lm.getEscalationCount());
+        assertTrue(lm.holdsLock(t1, new HeapPageId(1, 50)));
+        assertTrue(lm.grantLock(new HeapPageId(1, 50), t2, Permissions.READ_ONLY));
+        assertFalse(lm.grantLock(new HeapPageId(1, 51), t2, Permissions.READ_WRITE));
+
+        for (int i = 0; i < 9; i++)
+            lm.acquireLock(new HeapPageId(2, i), t3, Permissions.READ_ONLY);
+        lm.acquireLock(new HeapPageId(2, 9), t3, Permissions.READ_WRITE);
+        assertEquals(2, lm.getEscalationCount());
+        assertFalse(lm.grantLock(new HeapPageId(2, 50), t2, Permissions.READ_ONLY));
+
+        // t2 writes a page of table 3, so t1 cannot get a table S lock there
+        lm.acquireLock(new HeapPageId(3, 0), t2, Permissions.READ_WRITE);
+        for (int i = 1; i <= 10; i++)
+            lm.acquireLock(new HeapPageId(3, i), t1, Permissions.READ_ONLY);
+        assertEquals(2, lm.getEscalationCount());
+        assertFalse(lm.holdsLock(t1, new HeapPageId(3, 50)));
+        assertTrue(lm.grantLock(new HeapPageId(3, 50), t2, Permissions.READ_WRITE));
+    }
+
+    /**
+     * Record locks on one page only conflict for the same record; they keep
+     * page locks of other transactions out through the page's intention
+     * locks.
+     */
+    @Test public void recordLocks() throws Exception {
+        RecordId r0 = new RecordId(pid, 0), r1 = new RecordId(pid, 1);
+        lm.acquireRecordLock(r0, t1, Permissions.READ_WRITE);
+        assertTrue(lm.grantRecordLock(r1, t2, Permissions.READ_WRITE));
+        assertFalse(lm.grantRecordLock(r0, t2, Permissions.READ_ONLY));
+        assertTrue(lm.holdsLock(t1, r0));
+        assertFalse(lm.holdsLock(t1, pid));
+        assertFalse(lm.grantLock(pid, t3, Permissions.READ_ONLY));
+
+        lm.releaseTransaction(t1);
+        assertTrue(lm.grantRecordLock(r0, t3, Permissions.READ_ONLY));
+        lm.releaseTransaction(t2);
+        lm.releaseTransaction(t3);
+        assertTrue(lm.grantLock(pid, t1, Permissions.READ_WRITE));
+        // a page lock covers the records of the page
+        assertTrue(lm.holdsLock(t1, r1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,200 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private File f;
+    private LogFile log;
+
+    @Before public void createLog() throws Exception {
+        f = File.createTempFile("log", ".dat");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    private void commit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+    }
+
+    /** A lone commit does not wait for company, and forces the log itself. */
+    @Test public void commitForcesLog() throws Exception {
+        for (int i = 0; i < 5; i++)
+            commit();
+        assertEquals(5, log.getForceCount());
+    }
+
+    /** Commits that arrive within the window share one force of the log. */
+    @Test public void groupCommit() throws Exception {
+        final int threads = 8;
+        log.setGroupCommitWindow(1000000);
+        log.setGroupCommitSize(threads);
+        Thread[] committers = new Thread[threads];
+        final Exception[] error = {null};
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread(() -> {
+                try {
+                    commit();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            });
+            committers[i].start();
+        }
+        for (Thread t : committers)
+            t.join();
+        assertEquals(null, error[0]);
+        assertTrue(log.getForceCount() < threads);
+    }
+
+    /**
+     * Records wait in the append buffer until a force needs them, and a
+     * force of an LSN that is already on disk does not sync again.
+     */
+    @Test public void forceUpToLsn() throws Exception {
+        log.logXactionBegin(new TransactionId());
+        long first = log.currentLsn();
+        log.logXactionBegin(new TransactionId());
+        List<File> segments = log.segmentFiles();
+        File last = segments.get(segments.size() - 1);
+        assertEquals(0, last.length());
+
+        log.force(first);
+        assertEquals(1, log.getForceCount());
+        assertEquals(first, last.length());
+        log.force(first);
+        assertEquals(1, log.getForceCount());
+        log.force();
+        assertEquals(2, log.getForceCount());
+        assertEquals(log.currentLsn(), last.length());
+    }
+
+    /** Encode a page as page data and decode it again. */
+    private static Page roundTrip(Page page) throws Exception {
+        LogFile.RecordBody body = new LogFile.RecordBody(0);
+        LogFile.writePageData(body, page);
+        ByteBuffer in = ByteBuffer.wrap(body.toByteArray());
+        Page copy = LogFile.readPageData(in);
+        assertEquals(0, in.remaining());
+        assertEquals(page.getClass(), copy.getClass());
+        assertEquals(page.getId(), copy.getId());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+        return copy;
+    }
+
+    /** Every kind of page comes back from the log as it went in. */
+    @Test public void pageDataRoundTrip() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        roundTrip(hf.readPage(new HeapPageId(hf.getId(), 0)));
+
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+        BTreeFile bf = BTreeUtility.openBTreeFile(2, bFile, 1);
+        int id = bf.getId();
+        roundTrip(new BTreeRootPtrPage(new BTreePageId(id, 0, BTreePageId.ROOT_PTR),
+                BTreeRootPtrPage.createEmptyPageData()));
+        roundTrip(new BTreeInternalPage(new BTreePageId(id, 1, BTreePageId.INTERNAL),
+                BTreePage.createEmptyPageData(), 1));
+        roundTrip(new BTreeLeafPage(new BTreePageId(id, 2, BTreePageId.LEAF),
+                BTreePage.createEmptyPageData(), 1));
+        roundTrip(new BTreeHeaderPage(new BTreePageId(id, 3, BTreePageId.HEADER),
+                BTreeHeaderPage.createEmptyPageData()));
+    }
+
+    /** A mostly empty page is deflated in the log, and comes back whole. */
+    @Test public void compressedImage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Page page = hf.readPage(new HeapPageId(hf.getId(), 0));
+        LogFile.RecordBody body = new LogFile.RecordBody(0);
+        LogFile.writePageData(body, page, true);
+        assertTrue(body.size() < BufferPool.getPageSize() / 4);
+
+        ByteBuffer in = ByteBuffer.wrap(body.toByteArray());
+        Page copy = LogFile.readPageData(in);
+        assertEquals(0, in.remaining());
+        assertEquals(page.getId(), copy.getId());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * A record that does not match its checksum, as one torn by a crash,
+     * ends the log: recovery drops it and everything after it.
+     */
+    @Test public void tornRecordEndsLog() throws Exception {
+        commit();
+        long end = log.currentLsn();
+        log.logXactionBegin(new TransactionId());
+        log.force();
+        assertTrue(log.currentLsn() > end);
+
+        List<File> segments = log.segmentFiles();
+        File last = segments.get(segments.size() - 1);
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.seek(last.length() - LogFile.RECORD_TRAILER_SIZE);
+        raf.writeByte(raf.readByte() ^ 1);
+        raf.close();
+
+        LogFile recovered = new LogFile(f);
+        recovered.recover();
+        assertEquals(end, recovered.currentLsn());
+    }
+
+    /**
+     * The log goes on in a new segment once the current one is full, and
+     * a checkpoint drops the segments that nothing needs any more.
+     */
+    @Test public void segments() throws Exception {
+        log.setSegmentSize(100);
+        for (int i = 0; i < 10; i++)
+            commit();
+        assertTrue(log.segmentFiles().size() >= 5);
+
+        long first = log.currentLsn();
+        TransactionId running = new TransactionId();
+        log.logXactionBegin(running);
+        for (int i = 0; i < 10; i++)
+            commit();
+        int before = log.segmentFiles().size();
+        log.logCheckpoint();
+        // the running transaction keeps the segment of its first record
+        List<File> segments = log.segmentFiles();
+        assertTrue(segments.size() < before);
+        assertTrue(segmentStart(segments.get(0)) > 0);
+        assertTrue(segmentStart(segments.get(0)) <= first);
+
+        log.logCommit(running);
+        log.logCheckpoint();
+        assertEquals(1, log.segmentFiles().size());
+
+        LogFile recovered = new LogFile(f);
+        recovered.recover();
+        assertEquals(log.currentLsn(), recovered.currentLsn());
+    }
+
+    private static long segmentStart(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
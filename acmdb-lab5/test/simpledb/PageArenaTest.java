@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+    private static BufferPool offHeapPool(int pages) {
+        return Database.resetBufferPool(new BufferPool(pages, 1, ClockPolicy::new, true));
+    }
+
+    /**
+     * Frames are handed out once and come back when released.
+     */
+    @Test public void allocateRelease() {
+        PageArena arena = new PageArena(2);
+        int a = arena.allocate();
+        int b = arena.allocate();
+        assertTrue(a != b);
+        assertEquals(-1, arena.allocate());
+        arena.release(a);
+        assertEquals(1, arena.getNumFreeFrames());
+        assertEquals(a, arena.allocate());
+        assertEquals(BufferPool.getPageSize(), arena.frame(b).capacity());
+    }
+
+    /**
+     * A heap file scanned through a tiny off-heap pool returns the same
+     * tuples as on disk, although every frame is reused many times.
+     */
+    @Test public void heapScanThroughArena() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, tuples);
+        BufferPool bp = offHeapPool(3);
+        assertTrue(bp.isOffHeap());
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Same as above for B+ tree leaf pages.
+     */
+    @Test public void btreeScanThroughArena() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 2000, null, tuples, 0);
+        offHeapPool(4);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * A page that was evicted while an operator still holds it keeps its
+     * contents even though its frame now holds another page.
+     */
+    @Test public void evictedPageDetaches() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = offHeapPool(1);
+        TransactionId tid = new TransactionId();
+        HeapPage p0 = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        byte[] before = p0.getPageData();
+        assertTrue(p0.isFrameBacked());
+
+        bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY);
+        assertFalse(p0.isFrameBacked());
+        assertTrue(java.util.Arrays.equals(before, p0.getPageData()));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Reading past the end of a heap file fails in the read, and gives
+     * the frame it reserved back, so the next read can have it.
+     */
+    @Test public void readPastEndReleasesFrame() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        BufferPool bp = offHeapPool(1);
+        TransactionId tid = new TransactionId();
+        try {
+            bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY);
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Inserts write into the frame; aborting restores the frame from disk.
+     */
+    @Test public void insertAndAbort() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = offHeapPool(4);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[]{-7, -7}));
+
+        HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(11, count(p.iterator()));
+        bp.transactionComplete(tid, false);
+
+        TransactionId tid2 = new TransactionId();
+        p = (HeapPage) bp.getPage(tid2, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(10, count(p.iterator()));
+        bp.transactionComplete(tid2);
+    }
+
+    private static int count(Iterator<Tuple> it) {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    /**
+     * Adjacent pages are merged into one write, and the data lands at the
+     * right offsets.
+     */
+    @Test public void coalescedWrite() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        BufferPool bp = Database.resetBufferPool(10);
+        TransactionId tid = new TransactionId();
+        ArrayList<Page> dirty = new ArrayList<Page>();
+        for (int i : new int[]{0, 1, 2, 4}) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+            p.deleteTuple(p.iterator().next());
+            p.markDirty(true, tid);
+            dirty.add(p);
+        }
+        bp.transactionComplete(tid);
+
+        PageCleaner cleaner = bp.getPageCleaner();
+        assertEquals(4, cleaner.getPagesWritten());
+        assertEquals(2, cleaner.getWriteCount());
+        for (Page p : dirty) {
+            assertNull(p.isDirty());
+            assertTrue(Arrays.equals(p.getPageData(), f.readPage(p.getId()).getPageData()));
+        }
+    }
+
+    /**
+     * The background sweep writes pages of finished transactions but never
+     * those of a transaction that still holds its write lock.
+     */
+    @Test public void sweepSkipsRunningTransactions() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId done = new TransactionId();
+        TransactionId running = new TransactionId();
+
+        HeapPageId pid0 = new HeapPageId(f.getId(), 0);
+        Page p0 = bp.getPage(done, pid0, Permissions.READ_WRITE);
+        p0.markDirty(true, done);
+        bp.releasePage(done, pid0);
+
+        Page p1 = bp.getPage(running, new HeapPageId(f.getId(), 1), Permissions.READ_WRITE);
+        p1.markDirty(true, running);
+
+        assertEquals(1, bp.cleanShards(1.0));
+        assertNull(p0.isDirty());
+        assertNotNull(p1.isDirty());
+        bp.transactionComplete(running, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
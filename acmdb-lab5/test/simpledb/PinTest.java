@@ -0,0 +1,87 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PinTest extends SimpleDbTestBase {
+
+    /**
+     * A pinned page is never chosen for eviction, even when it is clean.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(new BufferPool(1, 1, ClockPolicy::new, false));
+        TransactionId tid = new TransactionId();
+        HeapPageId pid0 = new HeapPageId(f.getId(), 0);
+        HeapPageId pid1 = new HeapPageId(f.getId(), 1);
+
+        bp.pinPage(tid, pid0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(pid0));
+        try {
+            bp.getPage(tid, pid1, Permissions.READ_ONLY);
+            fail("evicted a pinned page");
+        } catch (DbException expected) {
+        }
+
+        bp.unpinPage(tid, pid0);
+        assertEquals(0, bp.getPinCount(pid0));
+        bp.getPage(tid, pid1, Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pins nest, and only the pinning transaction can drop them.
+     */
+    @Test public void pinsNestPerTransaction() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        BufferPool bp = Database.resetBufferPool(10);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+
+        bp.pinPage(t1, pid, Permissions.READ_ONLY);
+        bp.pinPage(t1, pid, Permissions.READ_ONLY);
+        bp.pinPage(t2, pid, Permissions.READ_ONLY);
+        assertEquals(3, bp.getPinCount(pid));
+
+        bp.unpinPage(t2, pid);
+        bp.unpinPage(t2, pid);
+        assertEquals(2, bp.getPinCount(pid));
+        bp.unpinPage(t1, pid);
+        assertEquals(1, bp.getPinCount(pid));
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * Committing or aborting a transaction drops every pin it still holds.
+     */
+    @Test public void transactionCompleteReleasesPins() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = Database.resetBufferPool(10);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.pinPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, bp.getPinCount(new HeapPageId(f.getId(), i)));
+
+        tid = new TransactionId();
+        bp.pinPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        bp.transactionComplete(tid, false);
+        assertEquals(0, bp.getPinCount(new HeapPageId(f.getId(), 0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PinTest.class);
+    }
+}
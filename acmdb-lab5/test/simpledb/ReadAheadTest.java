@@ -0,0 +1,61 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    /**
+     * A full heap scan reads pages ahead and still returns every tuple.
+     */
+    @Test public void heapScanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, tuples);
+        BufferPool bp = Database.resetBufferPool(100);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(bp.getPrefetchCount() > 0);
+    }
+
+    /**
+     * A leaf chain scan of a B+ tree reads ahead as well.
+     */
+    @Test public void btreeScanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        BufferPool bp = Database.resetBufferPool(200);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(bp.getPrefetchCount() > 0);
+    }
+
+    /**
+     * Nothing is read ahead when read-ahead is off or the pool is too small
+     * to hold a window.
+     */
+    @Test public void disabled() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        BufferPool bp = Database.resetBufferPool(100);
+        bp.setReadAheadEnabled(false);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(0, bp.getPrefetchCount());
+
+        bp = Database.resetBufferPool(8);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(0, bp.getPrefetchCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
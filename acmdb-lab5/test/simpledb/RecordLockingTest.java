@@ -0,0 +1,178 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RecordLockingTest extends SimpleDbTestBase {
+    private HeapFile f;
+    private HeapPageId pid;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        pid = new HeapPageId(f.getId(), 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(true);
+        bp.setLockTimeout(100);
+    }
+
+    @After public void tearDown() {
+        bp.setRecordLocking(false);
+    }
+
+    /** @return the values of the first column on page 0 of the file on disk */
+    private int sumOnDisk() {
+        Iterator<Tuple> it = ((HeapPage) f.readPage(pid)).iterator();
+        int sum = 0;
+        while (it.hasNext())
+            sum += ((IntField) it.next().getField(0)).getValue();
+        return sum;
+    }
+
+    /**
+     * Two transactions insert into the same page without waiting for each
+     * other; the commit of one writes the page without the other's tuple,
+     * and aborting the other takes back only its own tuple.
+     */
+    @Test public void concurrentInserts() throws Exception {
+        int base = sumOnDisk();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        Tuple a = Utility.getHeapTuple(new int[] {1000, 0});
+        Tuple b = Utility.getHeapTuple(new int[] {2000, 0});
+        bp.insertTuple(t1, f.getId(), a);
+        bp.insertTuple(t2, f.getId(), b);
+        assertEquals(pid, a.getRecordId().getPageId());
+        assertEquals(pid, b.getRecordId().getPageId());
+        assertFalse(bp.holdsLock(t1, pid));
+
+        bp.transactionComplete(t2, true);
+        assertEquals(base + 2000, sumOnDisk());
+        bp.transactionComplete(t1, false);
+        assertEquals(base + 2000, sumOnDisk());
+        assertEquals(11, ((HeapPage) f.readPage(pid)).getNumSlots()
+                - ((HeapPage) f.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * An aborted delete puts the tuple back into its slot, which nobody
+     * else could take in the meantime.
+     */
+    @Test public void abortedDelete() throws Exception {
+        int base = sumOnDisk();
+        TransactionId t1 = new TransactionId();
+        Tuple victim = ((HeapPage) bp.getPage(t1, pid, Permissions.READ_ONLY)).iterator().next();
+        bp.transactionComplete(t1);
+
+        TransactionId t2 = new TransactionId();
+        RecordId rid = victim.getRecordId();
+        bp.deleteTuple(t2, victim);
+        assertTrue(bp.getLockManager().holdsLock(t2, rid));
+
+        TransactionId t3 = new TransactionId();
+        Tuple other = Utility.getHeapTuple(new int[] {7, 7});
+        bp.insertTuple(t3, f.getId(), other);
+        assertFalse(rid.equals(other.getRecordId()));
+        bp.transactionComplete(t3, true);
+
+        bp.transactionComplete(t2, false);
+        assertEquals(base + 7, sumOnDisk());
+        TransactionId t4 = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(t4, pid, Permissions.READ_ONLY);
+        assertTrue(page.isSlotUsed(rid.tupleno()));
+        bp.transactionComplete(t4);
+    }
+
+    /**
+     * On an off-heap pool, commits and snapshot scans copy the before
+     * images of pages that other transactions are inserting records into
+     * at the same time; the two must not wait for each other.
+     */
+    @Test(timeout = 60000) public void insertsWhileOthersCommit() throws Exception {
+        bp = Database.resetBufferPool(new BufferPool(BufferPool.DEFAULT_PAGES, 1, ClockPolicy::new, true));
+        bp.setRecordLocking(true);
+        bp.setLockTimeout(100);
+        final int threads = 4, inserts = 1000;
+        final AtomicInteger committed = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < inserts; j++) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[] {id, j}));
+                            bp.transactionComplete(tid, true);
+                            committed.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                        }
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            });
+            workers[i].start();
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread scanner = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    TransactionId tid = new TransactionId();
+                    bp.beginSnapshot(tid);
+                    DbFileIterator it = f.iterator(tid);
+                    it.open();
+                    while (it.hasNext())
+                        it.next();
+                    it.close();
+                    bp.transactionComplete(tid);
+                }
+            } catch (Throwable t) {
+                error.compareAndSet(null, t);
+            }
+        });
+        scanner.start();
+        for (Thread worker : workers)
+            worker.join();
+        done.set(true);
+        scanner.join();
+        assertNull(error.get());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(10 + committed.get(), count);
+        assertTrue(committed.get() > 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
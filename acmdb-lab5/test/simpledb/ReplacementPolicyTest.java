@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.VictimFilter ANY = new ReplacementPolicy.VictimFilter() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private HeapPageId p0, p1, p2;
+
+    @Before public void createPids() {
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        p2 = new HeapPageId(1, 2);
+    }
+
+    /**
+     * A page that was hit again gets a second chance; pages read only once
+     * are evicted first.
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy clock = new ClockPolicy();
+        clock.pageAdded(p0);
+        clock.pageAdded(p1);
+        clock.pageAdded(p2);
+        clock.pageAccessed(p0);
+        assertEquals(p1, clock.chooseVictim(ANY));
+        clock.pageRemoved(p1);
+        assertEquals(p2, clock.chooseVictim(ANY));
+    }
+
+    /**
+     * The clock hand skips frames the BufferPool refuses to evict.
+     */
+    @Test public void clockRespectsFilter() {
+        ClockPolicy clock = new ClockPolicy();
+        clock.pageAdded(p0);
+        clock.pageAdded(p1);
+        assertEquals(p1, clock.chooseVictim(new ReplacementPolicy.VictimFilter() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(p0);
+            }
+        }));
+        assertNull(clock.chooseVictim(new ReplacementPolicy.VictimFilter() {
+            public boolean canEvict(PageId pid) {
+                return false;
+            }
+        }));
+    }
+
+    /**
+     * Pages with fewer than K references go first, in LRU order; among
+     * pages with K references the oldest K-th reference goes first.
+     */
+    @Test public void lruKOrder() {
+        LRUKPolicy lru = new LRUKPolicy(2);
+        lru.pageAdded(p0);
+        lru.pageAdded(p1);
+        lru.pageAdded(p2);
+        lru.pageAccessed(p0);
+        lru.pageAccessed(p2);
+        lru.pageAccessed(p2);
+        // p1 has a single reference
+        assertEquals(p1, lru.chooseVictim(ANY));
+        lru.pageRemoved(p1);
+        // p0's second most recent reference is older than p2's
+        assertEquals(p0, lru.chooseVictim(ANY));
+        assertEquals("LRU-2", lru.getName());
+    }
+
+    /**
+     * A page used over and over stays resident while a large scan streams
+     * through a small pool, and the hit counters reflect that.
+     */
+    @Test public void hotPageSurvivesScan() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(5, new LRUKPolicy());
+        TransactionId tid = new TransactionId();
+        HeapPageId hot = new HeapPageId(f.getId(), 0);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        bp.resetStats();
+
+        for (int i = 1; i < f.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            bp.getPage(tid, hot, Permissions.READ_ONLY);
+        }
+        assertEquals(f.numPages() - 1, bp.getHitCount());
+        assertEquals(f.numPages() - 1, bp.getMissCount());
+        assertTrue(Math.abs(bp.getHitRate() - 0.5) < 1e-9);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    private HeapFile f;
+    private HeapPageId pid;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        pid = new HeapPageId(f.getId(), 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * A snapshot neither sees uncommitted changes nor changes committed
+     * after it began, and it does not wait for the writer's locks.
+     */
+    @Test public void readsCommittedSnapshot() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        bp.beginSnapshot(reader);
+
+        bp.insertTuple(writer, f.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+        assertTrue(bp.holdsLock(writer, pid));
+        assertEquals(10, countTuples(reader));
+        assertFalse(bp.holdsLock(reader, pid));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(10, countTuples(reader));
+        assertEquals(1, bp.getVersionStore().getVersionCount());
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(11, countTuples(later));
+        bp.transactionComplete(later);
+
+        bp.transactionComplete(reader);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    /**
+     * Aborted changes never become visible, and no versions are kept for
+     * them.
+     */
+    @Test public void abortIsInvisible() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        bp.beginSnapshot(reader);
+        bp.insertTuple(writer, f.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+        bp.transactionComplete(writer, false);
+        assertEquals(10, countTuples(reader));
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Snapshot transactions are read-only.
+     */
+    @Test public void snapshotCannotWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        try {
+            bp.insertTuple(reader, f.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+            fail("snapshot transaction inserted a tuple");
+        } catch (DbException expected) {
+        }
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -112,6 +112,27 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Abort restores dirty pages from their before images in memory rather
+   * than reading them from disk again.
+   */
+  @Test public void abortRestoresBeforeImage() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    int used = p.getNumSlots() - p.getNumEmptySlots();
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+
+    // clobber the page on disk; an abort that read it back would see this
+    empty.writePage(new HeapPage((HeapPageId) p2, HeapPage.createEmptyPageData()));
+    long misses = bp.getMissCount();
+    bp.transactionComplete(tid1, false);
+
+    p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    assertEquals(misses, bp.getMissCount());
+    assertEquals(used, p.getNumSlots() - p.getNumEmptySlots());
+    assertEquals(null, p.isDirty());
+  }
+
   /**
    * JUnit suite target
    */
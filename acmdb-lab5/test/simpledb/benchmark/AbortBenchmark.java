@@ -0,0 +1,48 @@
+package simpledb.benchmark;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the latency of aborting write-heavy transactions: each one
+ * deletes a tuple from every one of a range of pages and then aborts. The
+ * abort restores the pages from their before images; for comparison, the
+ * last column is the time it takes to read the same pages from the file,
+ * which is what abort used to do.
+ * <p>
+ * Run with <code>ant runbenchmark -Dbench=AbortBenchmark</code>. The file
+ * was just written, so the operating system usually still caches it and
+ * the re-read column is a lower bound for a real disk.
+ */
+public class AbortBenchmark {
+    private static final int TABLE_PAGES = 1000;
+    private static final int POOL_PAGES = 2000;
+    private static final int[] DIRTY_PAGES = {10, 100, 1000};
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        System.out.println("table pages = " + f.numPages() + ", pool pages = " + POOL_PAGES);
+        System.out.println("dirty pages\tabort ms\tre-read ms");
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int pages : DIRTY_PAGES) {
+                TransactionId tid = new TransactionId();
+                for (int i = 0; i < pages; i++) {
+                    HeapPageId pid = new HeapPageId(f.getId(), i);
+                    HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+                    bp.deleteTuple(tid, p.iterator().next());
+                }
+                long start = System.nanoTime();
+                bp.transactionComplete(tid, false);
+                double abortMillis = (System.nanoTime() - start) / 1e6;
+
+                start = System.nanoTime();
+                for (int i = 0; i < pages; i++)
+                    f.readPage(new HeapPageId(f.getId(), i));
+                double rereadMillis = (System.nanoTime() - start) / 1e6;
+                System.out.printf("%d\t%.2f\t%.2f%n", pages, abortMillis, rereadMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb.benchmark;
+
+import java.util.Random;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures BufferPool.getPage throughput on a warm pool as reader threads
+ * are added, once with a single shard and once with (at least) one shard
+ * per core.
+ * <p>
+ * Run with <code>ant runbenchmark -Dbench=BufferPoolConcurrencyBenchmark</code>.
+ * Every getPage still goes through the LockManager, so the numbers include
+ * its cost as well as the BufferPool latching.
+ */
+public class BufferPoolConcurrencyBenchmark {
+    private static final int TABLE_PAGES = 512;
+    private static final long RUN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads = Math.max(8, cores);
+
+        System.out.println("table pages = " + f.numPages() + ", cores = " + cores);
+        System.out.println("shards\tthreads\tgetPage/s\thit rate");
+        for (int shards : new int[]{1, Math.max(cores, 8)}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                // leave headroom so that no shard has to evict
+                BufferPool bp = new BufferPool(2 * TABLE_PAGES, shards, ClockPolicy::new);
+                warm(bp, f);
+                bp.resetStats();
+                double rate = run(bp, f, threads);
+                System.out.printf("%d\t%d\t%.0f\t%.3f%n", bp.getNumShards(), threads, rate, bp.getHitRate());
+            }
+        }
+    }
+
+    private static void warm(BufferPool bp, HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < f.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    private static double run(final BufferPool bp, final HeapFile f, int threads) throws Exception {
+        final long[] counts = new long[threads];
+        final long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Random r = new Random(me);
+                    TransactionId tid = new TransactionId();
+                    int numPages = f.numPages();
+                    long n = 0;
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            for (int i = 0; i < 1000; i++) {
+                                bp.getPage(tid, new HeapPageId(f.getId(), r.nextInt(numPages)),
+                                        Permissions.READ_ONLY);
+                            }
+                            n += 1000;
+                        }
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    counts[me] = n;
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        return total / secs;
+    }
+}
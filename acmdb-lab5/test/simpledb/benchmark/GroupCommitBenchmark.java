@@ -0,0 +1,77 @@
+package simpledb.benchmark;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures commit throughput against the number of committing threads,
+ * with the group commit window off and on. Every transaction inserts one
+ * tuple into its thread's own table under NO-FORCE, so a commit costs a
+ * few log records and waiting for the log to be forced.
+ * <p>
+ * Run with <code>ant runbenchmark -Dbench=GroupCommitBenchmark</code>. The
+ * last column is the number of commits that shared each force of the log.
+ */
+public class GroupCommitBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+    private static final long[] WINDOWS_MICROS = {0, 500};
+    private static final long DURATION_MILLIS = 2000;
+    private static final int POOL_PAGES = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = THREADS[THREADS.length - 1];
+        HeapFile[] tables = new HeapFile[maxThreads];
+        for (int i = 0; i < maxThreads; i++)
+            tables[i] = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.setStealNoForce(true);
+        LogFile log = Database.getLogFile();
+
+        System.out.println("window us\tthreads\tcommits/s\tcommits/force");
+        for (long window : WINDOWS_MICROS) {
+            log.setGroupCommitWindow(window);
+            for (int threads : THREADS) {
+                log.setGroupCommitSize(threads);
+                long forcesBefore = log.getForceCount();
+                long commits = run(tables, threads);
+                long forces = log.getForceCount() - forcesBefore;
+                System.out.printf("%d\t%d\t%.0f\t%.1f%n", window, threads,
+                        commits * 1000.0 / DURATION_MILLIS, (double) commits / Math.max(1, forces));
+                // keep the log short between runs
+                log.logCheckpoint();
+            }
+        }
+    }
+
+    /** Commit transactions on the given number of threads; return how many committed. */
+    private static long run(HeapFile[] tables, int threads) throws InterruptedException {
+        LongAdder commits = new LongAdder();
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            HeapFile table = tables[i];
+            workers[i] = new Thread(() -> {
+                Tuple t = new Tuple(table.getTupleDesc());
+                t.setField(0, new IntField(1));
+                t.setField(1, new IntField(2));
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        Transaction tx = new Transaction();
+                        tx.start();
+                        Database.getBufferPool().insertTuple(tx.getId(), table.getId(), t);
+                        tx.commit();
+                        commits.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread w : workers)
+            w.join();
+        return commits.sum();
+    }
+}
@@ -0,0 +1,49 @@
+package simpledb.benchmark;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Measures how fast the log takes records, with the log forced after
+ * every so many of them. It appends BEGIN records, the smallest there
+ * are, so that the time goes to appending rather than to encoding pages.
+ * Each run appends to a fresh log file, and only forces through
+ * {@link LogFile#force(long)}, as a stolen page would.
+ * <p>
+ * Run with <code>ant runbenchmark -Dbench=LogAppendBenchmark</code>. A
+ * force every 0 records means the log is never forced, so that row is
+ * the cost of appending alone.
+ */
+public class LogAppendBenchmark {
+    private static final int RECORDS = 1000000;
+    private static final int[] FORCE_EVERY = {0, 10000, 1000, 100};
+
+    public static void main(String[] args) throws Exception {
+        // warm up
+        run(0, false);
+        System.out.println("force every\tbytes/record\trecords/s\tMB/s\tforces");
+        for (int every : FORCE_EVERY)
+            run(every, true);
+    }
+
+    /** Append RECORDS records to a new log, forcing it every so many. */
+    private static void run(int every, boolean print) throws Exception {
+        File file = File.createTempFile("logbench", ".dat");
+        file.deleteOnExit();
+        LogFile log = new LogFile(file);
+        long begin = System.nanoTime();
+        for (int i = 1; i <= RECORDS; i++) {
+            log.logXactionBegin(new TransactionId());
+            if (every > 0 && i % every == 0)
+                log.force(log.currentLsn());
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long bytes = log.currentLsn();
+        if (print)
+            System.out.printf("%d\t%d\t%.0f\t%.1f\t%d%n", every, bytes / RECORDS,
+                    RECORDS / seconds, bytes / 1e6 / seconds, log.getForceCount());
+        for (File segment : file.getParentFile().listFiles((d, n) -> n.startsWith(file.getName() + ".")))
+            segment.deleteOnExit();
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb.benchmark;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the size of the log per update and how fast recovery reads it
+ * back. Every transaction deletes one tuple of one heap page under
+ * NO-FORCE and commits, so it logs a BEGIN, the change of the page and
+ * a COMMIT. The first change of each page logs two whole page images,
+ * later ones only the bytes they change. Then the pool is dropped as in
+ * a crash and recovery redoes the pages from the log. Each run is done
+ * with whole page images logged as they are and deflated.
+ * <p>
+ * Run with <code>ant runbenchmark -Dbench=LogFormatBenchmark</code>. The
+ * second column is what the same transaction took in the earlier log
+ * format, which named the page and page id classes in every image and
+ * had no record length or checksum.
+ */
+public class LogFormatBenchmark {
+    private static final int[] UPDATES = {1000, 5000};
+    private static final int PAGES = 500;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("deflate\tupdates\tbytes/update (old)\tbytes/update\trecovery ms\tanalysis ms\tredo ms\tMB/s");
+        for (boolean deflate : new boolean[] {false, true})
+            for (int updates : UPDATES)
+                run(deflate, updates);
+    }
+
+    private static void run(boolean deflate, int updates) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(2 * PAGES);
+        bp.setStealNoForce(true);
+        bp.getPageCleaner().setCleanFraction(0);
+        LogFile log = Database.getLogFile();
+        log.setCompressImages(deflate);
+        long start = log.currentLsn();
+        for (int i = 0; i < updates; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            HeapPageId pid = new HeapPageId(f.getId(), i % PAGES);
+            HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+            bp.deleteTuple(t.getId(), p.iterator().next());
+            t.commit();
+        }
+        long logged = Database.getLogFile().currentLsn() - start;
+
+        Database.reset();
+        f = Utility.openHeapFile(2, f.getFile());
+        log = Database.getLogFile();
+        long begin = System.nanoTime();
+        log.recover();
+        double millis = (System.nanoTime() - begin) / 1e6;
+        System.out.printf("%b\t%d\t%d\t%d\t%.1f\t%d\t%d\t%.1f%n", deflate, updates, legacyBytesPerUpdate(),
+                logged / updates, millis,
+                log.getRecoveryMillis(LogFile.RecoveryPhase.ANALYSIS),
+                log.getRecoveryMillis(LogFile.RecoveryPhase.REDO),
+                logged / 1e6 / (millis / 1000));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        // start the next run with a short log
+        log.logCheckpoint();
+    }
+
+    /**
+     * BEGIN, UPDATE and COMMIT of one transaction in the earlier format:
+     * an int type, long tid and long start offset per record, and page
+     * data of page class name, id class name, id ints, length and data.
+     */
+    private static long legacyBytesPerUpdate() {
+        int header = 4 + 8 + 8;
+        int pageData = 2 + HeapPage.class.getName().length() + 2 + HeapPageId.class.getName().length()
+                + 4 + 2 * 4 + 4 + BufferPool.getPageSize();
+        return 3 * header + 2 * pageData;
+    }
+}
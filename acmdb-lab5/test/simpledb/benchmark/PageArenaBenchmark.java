@@ -0,0 +1,71 @@
+package simpledb.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares a heap BufferPool with an off-heap (arena backed) one: the heap
+ * footprint of a warm pool, and the time spent in GC while scans run over
+ * a table larger than the pool.
+ * <p>
+ * Run with <code>ant runbenchmark -Dbench=PageArenaBenchmark</code>.
+ */
+public class PageArenaBenchmark {
+    private static final int POOL_PAGES = 1000;
+    private static final int TABLE_PAGES = 2 * POOL_PAGES;
+    private static final int SCANS = 5;
+
+    public static void main(String[] args) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        System.out.println("pool pages = " + POOL_PAGES + ", table pages = " + f.numPages());
+        System.out.println("mode\twarm heap MB\tscan ms\tgc count\tgc ms");
+        for (boolean offHeap : new boolean[]{false, true, false, true}) {
+            Database.resetBufferPool(new BufferPool(POOL_PAGES, 1, ClockPolicy::new, offHeap));
+            long base = SystemTestUtil.getMemoryFootprint();
+            scan(f, POOL_PAGES);
+            long warm = SystemTestUtil.getMemoryFootprint() - base;
+
+            long gcCount = gcCount(), gcMillis = gcMillis();
+            long start = System.nanoTime();
+            for (int i = 0; i < SCANS; i++)
+                scan(f, f.numPages());
+            long scanMillis = (System.nanoTime() - start) / 1000000;
+            System.out.printf("%s\t%.1f\t%d\t%d\t%d%n", offHeap ? "arena" : "heap",
+                    warm / (1024.0 * 1024.0), scanMillis,
+                    gcCount() - gcCount, gcMillis() - gcMillis);
+        }
+    }
+
+    /** Touch every tuple of the first numPages pages of f. */
+    private static void scan(HeapFile f, int numPages) throws Exception {
+        TransactionId tid = new TransactionId();
+        BufferPool bp = Database.getBufferPool();
+        long sum = 0;
+        for (int i = 0; i < numPages; i++) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            java.util.Iterator<Tuple> it = p.iterator();
+            while (it.hasNext())
+                sum += ((IntField) it.next().getField(0)).getValue();
+        }
+        bp.transactionComplete(tid);
+        if (sum == 42)
+            System.out.println();
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += gc.getCollectionCount();
+        return n;
+    }
+
+    private static long gcMillis() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            n += gc.getCollectionTime();
+        return n;
+    }
+}
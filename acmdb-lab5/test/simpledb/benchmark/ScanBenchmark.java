@@ -0,0 +1,57 @@
+package simpledb.benchmark;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures full scans of a heap file and of a B+ tree on a cold
+ * BufferPool, with sequential read-ahead off and on.
+ * <p>
+ * Run with <code>ant runbenchmark -Dbench=ScanBenchmark</code>. The files
+ * were just written, so the operating system usually still caches them;
+ * the numbers then show how much of the per-page read cost read-ahead
+ * takes off the scanning thread rather than raw disk speed.
+ */
+public class ScanBenchmark {
+    private static final int HEAP_PAGES = 4096;
+    private static final int BTREE_ROWS = 500000;
+    private static final int POOL_PAGES = 1000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 504 * HEAP_PAGES, null, null);
+        BTreeFile btree = BTreeUtility.createRandomBTreeFile(2, BTREE_ROWS, null, null, 0);
+        System.out.println("heap pages = " + heap.numPages() + ", btree pages = " + btree.numPages()
+                + ", pool pages = " + POOL_PAGES);
+        System.out.println("file\tread-ahead\tms\tpages/s\tprefetched");
+        for (int round = 0; round < ROUNDS; round++) {
+            for (DbFile f : new DbFile[]{heap, btree}) {
+                for (boolean readAhead : new boolean[]{false, true}) {
+                    BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+                    bp.setReadAheadEnabled(readAhead);
+                    long start = System.nanoTime();
+                    long pages = scan(f) + bp.getPrefetchCount();
+                    double secs = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%s\t%s\t%.0f\t%.0f\t%d%n", f instanceof HeapFile ? "heap" : "btree",
+                            readAhead ? "on" : "off", secs * 1000, pages / secs, bp.getPrefetchCount());
+                }
+            }
+        }
+    }
+
+    /** Scan f and return the number of pages read by the scan itself. */
+    private static long scan(DbFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        long n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        BufferPool bp = Database.getBufferPool();
+        bp.transactionComplete(tid);
+        return bp.getMissCount();
+    }
+}
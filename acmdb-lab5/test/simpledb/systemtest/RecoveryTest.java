@@ -0,0 +1,366 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Transactions under STEAL / NO-FORCE, with the log taking back what
+ * aborted and unfinished transactions wrote, and redoing what committed
+ * transactions did not write.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private static final int POOL_PAGES = 5;
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int RECOVERY_THREADS = 4;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private ArrayList<ArrayList<Integer>> original;
+    private HeapFile f;
+
+    @Before public void createTable() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * PAGES, null, tuples);
+        original = new ArrayList<ArrayList<Integer>>(tuples);
+        startPool();
+    }
+
+    private static void startPool() {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.setStealNoForce(true);
+        bp.getPageCleaner().setCleanFraction(0);
+    }
+
+    /** Delete the first tuple of each of the first n pages, and expect it gone. */
+    private void deleteFromPages(Transaction t, int n) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < n; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+            Tuple victim = p.iterator().next();
+            bp.deleteTuple(t.getId(), victim);
+            tuples.remove(SystemTestUtil.tupleToList(victim));
+        }
+    }
+
+    private int tuplesOnDisk(int pageNo) {
+        HeapPage p = (HeapPage) f.readPage(new HeapPageId(f.getId(), pageNo));
+        return TUPLES_PER_PAGE - p.getNumEmptySlots();
+    }
+
+    /** Lose everything in memory, as a crash would, and recover from the log. */
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        f = Utility.openHeapFile(2, f.getFile());
+        LogFile log = Database.getLogFile();
+        log.setRecoveryThreads(RECOVERY_THREADS);
+        log.recover();
+        assertEquals(LogFile.RecoveryPhase.DONE, log.getRecoveryPhase());
+        assertEquals(1.0, log.getRecoveryProgress(), 0.0);
+        startPool();
+    }
+
+    /** A transaction that dirties more pages than the pool holds can commit. */
+    @Test public void largeTransactionCommits() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, PAGES);
+        t.commit();
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Commit only logs the pages; recovery writes them after a crash. */
+    @Test public void commitIsRedone() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, 1);
+        t.commit();
+        assertEquals(TUPLES_PER_PAGE, tuplesOnDisk(0));
+
+        crashAndRecover();
+        assertEquals(TUPLES_PER_PAGE - 1, tuplesOnDisk(0));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Pages stolen from a transaction that aborts are restored on disk. */
+    @Test public void abortRollsBackStolenPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, PAGES);
+        assertEquals(TUPLES_PER_PAGE - 1, tuplesOnDisk(0));
+        t.abort();
+        assertEquals(TUPLES_PER_PAGE, tuplesOnDisk(0));
+        SystemTestUtil.matchTuples(f, original);
+    }
+
+    /**
+     * A page evicted after its transaction logged it for commit, but
+     * before the commit record was forced, forces the log up to the
+     * page's record first; without the commit record, recovery undoes it.
+     */
+    @Test public void evictionBeforeCommitIsDurable() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, POOL_PAGES);
+        // commit logs the pages, then forces the commit record; crash in between
+        BufferPool bp = Database.getBufferPool();
+        bp.flushPages(t.getId());
+        LogFile log = Database.getLogFile();
+        long forces = log.getForceCount();
+
+        Transaction reader = new Transaction();
+        reader.start();
+        for (int i = POOL_PAGES; i < 2 * POOL_PAGES; i++)
+            bp.getPage(reader.getId(), new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        assertTrue(log.getForceCount() > forces);
+        int written = 0;
+        for (int i = 0; i < POOL_PAGES; i++)
+            if (tuplesOnDisk(i) == TUPLES_PER_PAGE - 1)
+                written++;
+        assertTrue(written > 0);
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, original);
+    }
+
+    /**
+     * An insert that needs a new page changes it in the pool like any
+     * other, so abort and recovery take it back.
+     */
+    @Test public void insertOnNewPageIsUndone() throws Exception {
+        Tuple tup = new Tuple(f.getTupleDesc());
+        tup.setField(0, new IntField(1));
+        tup.setField(1, new IntField(2));
+        Transaction aborted = new Transaction();
+        aborted.start();
+        Database.getBufferPool().insertTuple(aborted.getId(), f.getId(), tup);
+        assertEquals(PAGES + 1, f.numPages());
+        aborted.abort();
+        SystemTestUtil.matchTuples(f, original);
+
+        Transaction loser = new Transaction();
+        loser.start();
+        Database.getBufferPool().insertTuple(loser.getId(), f.getId(), tup);
+        Database.getBufferPool().flushAllPages();
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, original);
+    }
+
+    /**
+     * Under record locking and FORCE, a commit writes a page that also
+     * holds a record of a transaction still running; that record does not
+     * reach disk, so it is gone after a crash.
+     */
+    @Test public void uncommittedRecordIsNotForced() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.setRecordLocking(true);
+        Tuple a = new Tuple(f.getTupleDesc());
+        a.setField(0, new IntField(1));
+        a.setField(1, new IntField(2));
+        Tuple b = new Tuple(f.getTupleDesc());
+        b.setField(0, new IntField(3));
+        b.setField(1, new IntField(4));
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        bp.insertTuple(t1.getId(), f.getId(), a);
+        bp.insertTuple(t2.getId(), f.getId(), b);
+        assertEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+        t1.commit();
+        tuples.add(SystemTestUtil.tupleToList(a));
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Pages stolen from a transaction that never finished are restored by
+     * recovery, and only once: a later recovery does not undo them again
+     * over newer committed changes.
+     */
+    @Test public void losersAreUndoneOnce() throws Exception {
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFromPages(loser, PAGES);
+        assertEquals(TUPLES_PER_PAGE - 1, tuplesOnDisk(0));
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, original);
+
+        tuples = new ArrayList<ArrayList<Integer>>(original);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, PAGES);
+        t.commit();
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Many committed pages are redone by several workers. */
+    @Test public void parallelRedo() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, PAGES);
+        t.commit();
+        Database.getBufferPool().discardPage(new HeapPageId(f.getId(), PAGES - 1));
+        assertEquals(TUPLES_PER_PAGE, tuplesOnDisk(PAGES - 1));
+
+        crashAndRecover();
+        for (int i = 0; i < PAGES; i++)
+            assertEquals(TUPLES_PER_PAGE - 1, tuplesOnDisk(i));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Recovery starts from the last checkpoint: changes committed before
+     * it are on disk, those after it are redone, and a transaction that
+     * was running across it is undone.
+     */
+    @Test public void recoverFromCheckpoint() throws Exception {
+        Transaction before = new Transaction();
+        before.start();
+        deleteFromPages(before, 1);
+        before.commit();
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>(tuples);
+
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFromPages(loser, PAGES);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(TUPLES_PER_PAGE - 2, tuplesOnDisk(0));
+
+        crashAndRecover();
+        assertEquals(TUPLES_PER_PAGE - 1, tuplesOnDisk(0));
+        SystemTestUtil.matchTuples(f, committed);
+
+        tuples = committed;
+        Transaction after = new Transaction();
+        after.start();
+        deleteFromPages(after, 2);
+        after.commit();
+        Database.getLogFile().logCheckpoint();
+        Transaction last = new Transaction();
+        last.start();
+        deleteFromPages(last, 1);
+        last.commit();
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * A checkpoint does not write committed pages; it records them as
+     * dirty, so recovery still redoes them from before the checkpoint.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, 1);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(TUPLES_PER_PAGE, tuplesOnDisk(0));
+
+        crashAndRecover();
+        assertEquals(TUPLES_PER_PAGE - 1, tuplesOnDisk(0));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * The cleaner writes committed pages and checkpoints in the background
+     * once recovery would have to redo more than the configured log.
+     */
+    @Test public void redoWindowIsBounded() throws Exception {
+        final long maxRedo = 3 * BufferPool.getPageSize() * 2;
+        Database.getBufferPool().getPageCleaner().setMaxRedoBytes(maxRedo);
+        for (int i = 0; i < POOL_PAGES; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+            Tuple victim = p.iterator().next();
+            Database.getBufferPool().deleteTuple(t.getId(), victim);
+            tuples.remove(SystemTestUtil.tupleToList(victim));
+            t.commit();
+        }
+        LogFile log = Database.getLogFile();
+        for (int i = 0; i < 500 && (log.getRedoWindow() > maxRedo || tuplesOnDisk(0) == TUPLES_PER_PAGE); i++)
+            Thread.sleep(10);
+        assertTrue(log.getRedoWindow() <= maxRedo);
+        assertEquals(TUPLES_PER_PAGE - 1, tuplesOnDisk(0));
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Only the first change of a page after a checkpoint logs whole page
+     * images; later changes log the bytes they change, and recovery
+     * redoes and undoes those too.
+     */
+    @Test public void deltaLogging() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction first = new Transaction();
+        first.start();
+        deleteFromPages(first, 1);
+        first.commit();
+        long start = log.currentLsn();
+        Transaction second = new Transaction();
+        second.start();
+        deleteFromPages(second, 1);
+        second.commit();
+        assertTrue(log.currentLsn() - start < BufferPool.getPageSize() / 10);
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>(tuples);
+
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFromPages(loser, PAGES);
+        assertEquals(TUPLES_PER_PAGE - 3, tuplesOnDisk(0));
+
+        crashAndRecover();
+        assertEquals(TUPLES_PER_PAGE - 2, tuplesOnDisk(0));
+        SystemTestUtil.matchTuples(f, committed);
+    }
+
+    /**
+     * With a log split into many segments, a checkpoint drops the old
+     * ones and recovery reads across the rest.
+     */
+    @Test public void recoverAcrossSegments() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(2 * BufferPool.getPageSize());
+        Transaction t = new Transaction();
+        t.start();
+        deleteFromPages(t, PAGES);
+        t.commit();
+        int segments = log.getSegmentCount();
+        assertTrue(segments >= PAGES / 2);
+
+        Database.getBufferPool().flushAllPages();
+        log.logCheckpoint();
+        assertTrue(log.getSegmentCount() < segments);
+
+        Transaction after = new Transaction();
+        after.start();
+        deleteFromPages(after, PAGES);
+        after.commit();
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>(tuples);
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFromPages(loser, PAGES);
+
+        crashAndRecover();
+        SystemTestUtil.matchTuples(f, committed);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}